@@ -5,13 +5,66 @@ import java.sql.ResultSet;
 public abstract class AbstractResultSetProcessor {
     public RedisUtils redisUtils;
     public QueryUtils queryUtils;
+    public ChangeTracker changeTracker;
 
     public AbstractResultSetProcessor(final RedisUtils redisUtils, final QueryUtils queryUtils) {
+        this(redisUtils, queryUtils, new ChangeTracker(false));
+    }
+
+    public AbstractResultSetProcessor(final RedisUtils redisUtils, final QueryUtils queryUtils, final ChangeTracker changeTracker) {
         this.redisUtils = redisUtils;
         this.queryUtils = queryUtils;
+        this.changeTracker = changeTracker;
     }
 
-    public abstract void processResultSet(final ResultSet resultSet) throws Exception;
+    /**
+     * Processes all rows of the result set, advancing it with {@link QueryStats#next(ResultSet)}
+     */
+    public abstract void processResultSet(final ResultSet resultSet, final QueryStats stats) throws Exception;
+
+    /**
+     * Called before a cycle when Redis has lost the cache. Processors that skip writing unchanged keys must write
+     * all of their keys in the next cycle.
+     */
+    public void cacheLost() {
+    }
 
+    public String getName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * @return the query, which can have parameters that are bound to {@link #getQueryParameters(QueryUtils.DateRange)}
+     */
     protected abstract String getQuery();
+
+    /**
+     * @param range operating days to query, the whole query window unless the query is sharded
+     * @return values of the query parameters in order
+     */
+    protected Object[] getQueryParameters(final QueryUtils.DateRange range) {
+        return new Object[0];
+    }
+
+    /**
+     * @return true if the query of this processor can be limited to a range of operating days
+     */
+    public boolean isShardable() {
+        return false;
+    }
+
+    /**
+     * @return a cheap query whose result changes when the data of this processor changes,
+     *         or null if changes are only picked up by the scheduled refresh
+     */
+    public String getChangeIndicatorQuery() {
+        return null;
+    }
+
+    /**
+     * @return values of the parameters of {@link #getChangeIndicatorQuery()} in order
+     */
+    public Object[] getChangeIndicatorParameters() {
+        return new Object[0];
+    }
 }
@@ -0,0 +1,194 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects per-processor query and Redis write metrics and serves them in Prometheus text format.
+ */
+public class BootstrapperMetrics {
+    private static final Logger log = LoggerFactory.getLogger(BootstrapperMetrics.class);
+
+    private static final double[] WRITE_LATENCY_BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5 };
+
+    private static final Map<String, ProcessorMetrics> processors = new ConcurrentHashMap<>();
+    private static volatile double lastCycleDurationSeconds = 0;
+    private static volatile long lastSuccessfulCycleTime = 0;
+    private static volatile long lastCyclePeakHeapBytes = 0;
+    private static volatile long lastCycleRedisCommands = 0;
+    private static volatile double writeRateLimit = 0;
+    private static final AtomicLong failedCycles = new AtomicLong(0);
+    private static final AtomicLong resumedCycles = new AtomicLong(0);
+
+    private static HttpServer server;
+
+    private BootstrapperMetrics() {}
+
+    public static synchronized void startServer(final int port, final String path) throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(path, exchange -> {
+            final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor());
+        server.start();
+        log.info("Metrics available at port {} path {}", port, path);
+    }
+
+    public static void recordQuery(final String processor, final QueryStats stats, final boolean success) {
+        final ProcessorMetrics metrics = get(processor);
+        metrics.queryExecutionSeconds = stats.getExecutionSeconds();
+        metrics.firstRowSeconds = stats.getFirstRowSeconds();
+        metrics.rowRate = stats.getRowRate();
+        metrics.rows.addAndGet(stats.getRows());
+        if (!success) {
+            metrics.failedQueries.incrementAndGet();
+        }
+    }
+
+    public static void recordRedisWrite(final String processor, final long latencyNanos, final int keysWritten, final int failed) {
+        final ProcessorMetrics metrics = get(processor);
+        metrics.keysWritten.addAndGet(keysWritten);
+        metrics.failedWrites.addAndGet(failed);
+        metrics.writeLatency.observe(latencyNanos / 1e9);
+    }
+
+    public static void recordRetry(final String processor) {
+        get(processor).retries.incrementAndGet();
+    }
+
+    /**
+     * Records that an interrupted cycle was resumed from its checkpoint
+     */
+    public static void recordResume() {
+        resumedCycles.incrementAndGet();
+    }
+
+    public static void recordCycle(final long durationMillis, final boolean success) {
+        lastCycleDurationSeconds = durationMillis / 1000.0;
+        if (success) {
+            lastSuccessfulCycleTime = System.currentTimeMillis();
+        } else {
+            failedCycles.incrementAndGet();
+        }
+    }
+
+    public static void recordCycleResources(final long peakHeapBytes, final long redisCommands) {
+        lastCyclePeakHeapBytes = peakHeapBytes;
+        lastCycleRedisCommands = redisCommands;
+    }
+
+    /**
+     * Records the current limit of the write throttle in commands per second
+     */
+    public static void recordWriteRateLimit(final double commandsPerSecond) {
+        writeRateLimit = commandsPerSecond;
+    }
+
+    private static ProcessorMetrics get(final String processor) {
+        return processors.computeIfAbsent(processor, name -> new ProcessorMetrics());
+    }
+
+    public static String scrape() {
+        final StringBuilder out = new StringBuilder();
+        out.append("# TYPE bootstrapper_query_execution_seconds gauge\n");
+        processors.forEach((name, metrics) -> sample(out, "bootstrapper_query_execution_seconds", name, metrics.queryExecutionSeconds));
+        out.append("# TYPE bootstrapper_query_first_row_seconds gauge\n");
+        processors.forEach((name, metrics) -> sample(out, "bootstrapper_query_first_row_seconds", name, metrics.firstRowSeconds));
+        out.append("# TYPE bootstrapper_row_fetch_rate gauge\n");
+        processors.forEach((name, metrics) -> sample(out, "bootstrapper_row_fetch_rate", name, metrics.rowRate));
+        out.append("# TYPE bootstrapper_rows_total counter\n");
+        processors.forEach((name, metrics) -> sample(out, "bootstrapper_rows_total", name, metrics.rows.get()));
+        out.append("# TYPE bootstrapper_failed_queries_total counter\n");
+        processors.forEach((name, metrics) -> sample(out, "bootstrapper_failed_queries_total", name, metrics.failedQueries.get()));
+        out.append("# TYPE bootstrapper_query_retries_total counter\n");
+        processors.forEach((name, metrics) -> sample(out, "bootstrapper_query_retries_total", name, metrics.retries.get()));
+        out.append("# TYPE bootstrapper_redis_keys_written_total counter\n");
+        processors.forEach((name, metrics) -> sample(out, "bootstrapper_redis_keys_written_total", name, metrics.keysWritten.get()));
+        out.append("# TYPE bootstrapper_redis_failed_writes_total counter\n");
+        processors.forEach((name, metrics) -> sample(out, "bootstrapper_redis_failed_writes_total", name, metrics.failedWrites.get()));
+        out.append("# TYPE bootstrapper_redis_write_seconds histogram\n");
+        processors.forEach((name, metrics) -> metrics.writeLatency.write(out, "bootstrapper_redis_write_seconds", name));
+        out.append("# TYPE bootstrapper_redis_write_rate_limit gauge\n");
+        out.append("bootstrapper_redis_write_rate_limit ").append(writeRateLimit).append('\n');
+        out.append("# TYPE bootstrapper_cycle_duration_seconds gauge\n");
+        out.append("bootstrapper_cycle_duration_seconds ").append(lastCycleDurationSeconds).append('\n');
+        out.append("# TYPE bootstrapper_cycle_peak_heap_bytes gauge\n");
+        out.append("bootstrapper_cycle_peak_heap_bytes ").append(lastCyclePeakHeapBytes).append('\n');
+        out.append("# TYPE bootstrapper_cycle_redis_commands gauge\n");
+        out.append("bootstrapper_cycle_redis_commands ").append(lastCycleRedisCommands).append('\n');
+        out.append("# TYPE bootstrapper_last_successful_cycle_timestamp_seconds gauge\n");
+        out.append("bootstrapper_last_successful_cycle_timestamp_seconds ").append(lastSuccessfulCycleTime / 1000).append('\n');
+        out.append("# TYPE bootstrapper_failed_cycles_total counter\n");
+        out.append("bootstrapper_failed_cycles_total ").append(failedCycles.get()).append('\n');
+        out.append("# TYPE bootstrapper_resumed_cycles_total counter\n");
+        out.append("bootstrapper_resumed_cycles_total ").append(resumedCycles.get()).append('\n');
+        return out.toString();
+    }
+
+    private static void sample(final StringBuilder out, final String metric, final String processor, final double value) {
+        out.append(metric).append("{processor=\"").append(processor).append("\"} ").append(value).append('\n');
+    }
+
+    private static class ProcessorMetrics {
+        volatile double queryExecutionSeconds = 0;
+        volatile double firstRowSeconds = 0;
+        volatile double rowRate = 0;
+        final AtomicLong rows = new AtomicLong(0);
+        final AtomicLong failedQueries = new AtomicLong(0);
+        final AtomicLong retries = new AtomicLong(0);
+        final AtomicLong keysWritten = new AtomicLong(0);
+        final AtomicLong failedWrites = new AtomicLong(0);
+        final Histogram writeLatency = new Histogram(WRITE_LATENCY_BUCKETS);
+    }
+
+    private static class Histogram {
+        private final double[] buckets;
+        private final AtomicLongArray counts;
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong sumNanos = new AtomicLong(0);
+
+        Histogram(final double[] buckets) {
+            this.buckets = buckets;
+            this.counts = new AtomicLongArray(buckets.length);
+        }
+
+        void observe(final double value) {
+            for (int i = 0; i < buckets.length; i++) {
+                if (value <= buckets[i]) {
+                    counts.incrementAndGet(i);
+                }
+            }
+            count.incrementAndGet();
+            sumNanos.addAndGet(Math.round(value * 1e9));
+        }
+
+        void write(final StringBuilder out, final String metric, final String processor) {
+            for (int i = 0; i < buckets.length; i++) {
+                out.append(metric).append("_bucket{processor=\"").append(processor).append("\",le=\"").append(buckets[i]).append("\"} ")
+                        .append(counts.get(i)).append('\n');
+            }
+            out.append(metric).append("_bucket{processor=\"").append(processor).append("\",le=\"+Inf\"} ").append(count.get()).append('\n');
+            out.append(metric).append("_sum{processor=\"").append(processor).append("\"} ").append(sumNanos.get() / 1e9).append('\n');
+            out.append(metric).append("_count{processor=\"").append(processor).append("\"} ").append(count.get()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary snapshot of the values written to Redis during a full refresh.
+ *
+ * The file starts with a magic number, format version and creation time, followed by records:
+ * a type byte, the key and either a string value or a field count and field-value pairs of a hash.
+ * Strings are stored as an unsigned short length followed by UTF-8 bytes. A zero type byte ends the file.
+ */
+public class CacheSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(CacheSnapshot.class);
+
+    private static final int MAGIC = 0x54444353; // TDCS
+    private static final int VERSION = 1;
+    private static final byte TYPE_END = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_HASH = 2;
+
+    private CacheSnapshot() {}
+
+    public static Recorder startRecording(final Path path) throws IOException {
+        return new Recorder(path);
+    }
+
+    /**
+     * Writes the contents of the snapshot to Redis with the batch writer of RedisUtils. The keys get the Redis TTL
+     * minus the age of the snapshot, so that they don't outlive the keys written when the snapshot was recorded.
+     * Snapshots older than the TTL are not replayed.
+     *
+     * @return number of keys replayed, or -1 if there was no snapshot or it had expired
+     */
+    public static long replay(final Path path, final RedisUtils redisUtils) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            log.info("No cache snapshot found at {}", path);
+            return -1;
+        }
+        long keys = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                log.warn("Ignoring cache snapshot {} with unknown format", path);
+                return -1;
+            }
+            final long createdAt = buffer.getLong();
+            final long ageInSeconds = Math.max(0, (System.currentTimeMillis() - createdAt) / 1000);
+            final long ttlInSeconds = redisUtils.redisTTLInSeconds - ageInSeconds;
+            if (ttlInSeconds <= 0) {
+                log.info("Ignoring cache snapshot {} created {} minutes ago, its keys have expired", path, ageInSeconds / 60);
+                return -1;
+            }
+            log.info("Replaying cache snapshot {} created {} minutes ago with TTL of {} secs", path, ageInSeconds / 60, ttlInSeconds);
+
+            try (RedisBatchWriter writer = redisUtils.newBatchWriter("SnapshotReplay", (int) ttlInSeconds)) {
+                byte type;
+                while ((type = buffer.get()) != TYPE_END) {
+                    final String key = readString(buffer);
+                    if (type == TYPE_STRING) {
+                        writer.setValue(key, readString(buffer), null);
+                    } else if (type == TYPE_HASH) {
+                        final int fields = Short.toUnsignedInt(buffer.getShort());
+                        final Map<String, String> values = new HashMap<>(fields * 2);
+                        for (int i = 0; i < fields; i++) {
+                            values.put(readString(buffer), readString(buffer));
+                        }
+                        writer.setValuesWithExpire(key, values, null);
+                    } else {
+                        throw new IOException("Unknown record type " + type + " in cache snapshot");
+                    }
+                    writer.endRow();
+                    keys++;
+                }
+            }
+        }
+        log.info("Replayed {} keys from cache snapshot", keys);
+        return keys;
+    }
+
+    private static String readString(final MappedByteBuffer buffer) {
+        final byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Records values to a temporary file, which replaces the snapshot when the recording is committed.
+     */
+    public static class Recorder {
+        private final Path path;
+        private final Path tempPath;
+        private final DataOutputStream out;
+        private long records = 0;
+
+        private Recorder(final Path path) throws IOException {
+            this.path = path;
+            this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+        }
+
+        public synchronized void recordString(final String key, final String value) {
+            try {
+                out.writeByte(TYPE_STRING);
+                writeString(key);
+                writeString(value);
+                records++;
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write cache snapshot", e);
+            }
+        }
+
+        public synchronized void recordHash(final String key, final Map<String, String> values) {
+            try {
+                out.writeByte(TYPE_HASH);
+                writeString(key);
+                out.writeShort(values.size());
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    writeString(entry.getKey());
+                    writeString(entry.getValue());
+                }
+                records++;
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write cache snapshot", e);
+            }
+        }
+
+        private void writeString(final String value) throws IOException {
+            final byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        public synchronized void commit() throws IOException {
+            out.writeByte(TYPE_END);
+            out.close();
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Wrote cache snapshot of {} keys to {}", records, path);
+        }
+
+        public synchronized void discard() {
+            try {
+                out.close();
+                Files.deleteIfExists(tempPath);
+            } catch (IOException e) {
+                log.warn("Failed to delete incomplete cache snapshot {}", tempPath, e);
+            }
+        }
+    }
+}
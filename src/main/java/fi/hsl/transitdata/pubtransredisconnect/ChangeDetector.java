@@ -0,0 +1,74 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detects changes in PubTrans by polling the change indicator queries of the processors and comparing their results
+ * to the previous poll. Processors sharing the same indicator query run it only once. The queries are run as
+ * prepared statements of the given QueryProcessor.
+ *
+ * Results are remembered per query and parameters, so when the parameters change (f.ex. the query window moves to the
+ * next day) the first result only becomes the new baseline.
+ */
+public class ChangeDetector {
+    private static final Logger log = LoggerFactory.getLogger(ChangeDetector.class);
+
+    private final List<AbstractResultSetProcessor> processors;
+    private Map<String, String> previousResults = new HashMap<>();
+
+    public ChangeDetector(final List<AbstractResultSetProcessor> processors) {
+        this.processors = processors;
+    }
+
+    /**
+     * @return processors whose indicator changed since the previous poll, empty on the first poll
+     */
+    public List<AbstractResultSetProcessor> detectChanges(final QueryProcessor queryProcessor) throws SQLException {
+        final Map<String, String> results = new HashMap<>();
+        final List<AbstractResultSetProcessor> changed = new ArrayList<>();
+        for (AbstractResultSetProcessor processor : processors) {
+            final String query = processor.getChangeIndicatorQuery();
+            if (query == null) {
+                continue;
+            }
+            final Object[] parameters = processor.getChangeIndicatorParameters();
+            final String indicator = query + Arrays.toString(parameters);
+            String result = results.get(indicator);
+            if (result == null) {
+                result = readIndicator(queryProcessor, query, parameters);
+                results.put(indicator, result);
+            }
+            final String previousResult = previousResults.get(indicator);
+            if (previousResult != null && !previousResult.equals(result)) {
+                log.info("{}: change detected in PubTrans ({} -> {})", processor.getName(), previousResult, result);
+                changed.add(processor);
+            }
+        }
+        previousResults = results;
+        return changed;
+    }
+
+    private static String readIndicator(final QueryProcessor queryProcessor, final String query, final Object[] parameters)
+            throws SQLException {
+        try (ResultSet resultSet = queryProcessor.executeQuery(query, parameters)) {
+            final StringBuilder result = new StringBuilder();
+            final ResultSetMetaData metaData = resultSet.getMetaData();
+            while (resultSet.next()) {
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                    result.append(resultSet.getString(i)).append(i < metaData.getColumnCount() ? "," : ";");
+                }
+            }
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers a content fingerprint for every key written by a processor during the previous cycle,
+ * so that an incremental cycle only needs to write keys that are new or whose content has changed.
+ *
+ * Fingerprints are only kept for keys whose writes succeeded. Keys that were not seen during a cycle
+ * are forgotten when the cycle ends.
+ */
+public class ChangeTracker {
+    private static final Logger log = LoggerFactory.getLogger(ChangeTracker.class);
+
+    private final boolean enabled;
+
+    private Map<String, Integer> previous = new ConcurrentHashMap<>();
+    private Map<String, Integer> current = new ConcurrentHashMap<>();
+    private boolean fullRefresh = true;
+    private final AtomicInteger skipped = new AtomicInteger(0);
+
+    public ChangeTracker(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void beginCycle(final boolean fullRefresh) {
+        this.fullRefresh = fullRefresh || !enabled;
+        this.current = new ConcurrentHashMap<>(Math.max(16, previous.size()));
+        this.skipped.set(0);
+    }
+
+    /**
+     * @return true if the key should be written to Redis, false if it is unchanged since the previous cycle
+     */
+    public boolean hasChanged(final String key, final int fingerprint) {
+        if (fullRefresh) {
+            return true;
+        }
+        final Integer previousFingerprint = previous.get(key);
+        if (previousFingerprint != null && previousFingerprint == fingerprint) {
+            current.put(key, fingerprint);
+            skipped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void markWritten(final String key, final int fingerprint) {
+        if (enabled) {
+            current.put(key, fingerprint);
+        }
+    }
+
+    public void forget(final String key) {
+        current.remove(key);
+    }
+
+    /**
+     * @param completeWindow whether the cycle covered the whole query window. If not, keys that were not seen
+     *                       are not forgotten, because they were outside of the refreshed days.
+     */
+    public void endCycle(final String processorName, final boolean completeWindow) {
+        if (enabled) {
+            log.info("{}: {} keys tracked, {} unchanged keys skipped ({} refresh)",
+                    processorName, current.size(), skipped.get(), fullRefresh ? "full" : "incremental");
+        }
+        if (completeWindow) {
+            previous = current;
+        } else {
+            previous.putAll(current);
+        }
+        current = new ConcurrentHashMap<>();
+    }
+
+    public static int fingerprint(final String... values) {
+        int hash = 1;
+        for (String value : values) {
+            hash = 31 * hash + (value == null ? 0 : value.hashCode());
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,121 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import java.sql.ResultSet;
+
+/**
+ * Writes the outputs of both {@link JourneyResultSetProcessor} and {@link MetroJourneyResultSetProcessor} from a single
+ * scan of the dated vehicle journeys, instead of querying the same journeys twice. The start stop is only joined
+ * for metro journeys, so other journeys don't multiply the rows.
+ */
+public class CombinedJourneyResultSetProcessor extends AbstractResultSetProcessor {
+    private static final String TRANSPORT_MODE_METRO = "METRO";
+
+    private final JourneyResultSetProcessor journeys;
+    private final MetroJourneyResultSetProcessor metroJourneys;
+
+    public CombinedJourneyResultSetProcessor(final RedisUtils redisUtils, final QueryUtils queryUtils) {
+        this(redisUtils, queryUtils, new ChangeTracker(false));
+    }
+
+    public CombinedJourneyResultSetProcessor(final RedisUtils redisUtils, final QueryUtils queryUtils, final ChangeTracker changeTracker) {
+        super(redisUtils, queryUtils, changeTracker);
+        //The outputs share the change tracker of this processor, their keys don't overlap
+        this.journeys = new JourneyResultSetProcessor(redisUtils, queryUtils, changeTracker);
+        this.metroJourneys = new MetroJourneyResultSetProcessor(redisUtils, queryUtils, changeTracker);
+    }
+
+    public void processResultSet(final ResultSet resultSet, final QueryStats stats) throws Exception {
+        int rowCounter = 0;
+        int metroRowCounter = 0;
+        final JourneyResultSetProcessor.Output journeyOutput = journeys.new Output();
+        final MetroJourneyResultSetProcessor.Output metroOutput = metroJourneys.new Output();
+
+        final int dvjIdColumn = resultSet.findColumn(queryUtils.DVJ_ID);
+        final int routeNameColumn = resultSet.findColumn(queryUtils.ROUTE_NAME);
+        final int directionColumn = resultSet.findColumn(queryUtils.DIRECTION);
+        final int startTimeColumn = resultSet.findColumn(queryUtils.START_TIME);
+        final int operatingDayColumn = resultSet.findColumn(queryUtils.OPERATING_DAY);
+        final int stopNumberColumn = resultSet.findColumn(queryUtils.STOP_NUMBER);
+        final int transportModeColumn = resultSet.findColumn(queryUtils.TRANSPORT_MODE);
+
+        try (RedisBatchWriter writer = redisUtils.newBatchWriter(getName())) {
+            while (stats.next(resultSet)) {
+                rowCounter++;
+                final String dvjId = resultSet.getString(dvjIdColumn);
+                final String routeName = resultSet.getString(routeNameColumn);
+                final String direction = resultSet.getString(directionColumn);
+                final String startTime = resultSet.getString(startTimeColumn);
+                final String operatingDay = resultSet.getString(operatingDayColumn);
+
+                boolean written = journeyOutput.write(writer, dvjId, routeName, direction, startTime, operatingDay);
+                if (TRANSPORT_MODE_METRO.equals(resultSet.getString(transportModeColumn))) {
+                    metroRowCounter++;
+                    final String stopNumber = resultSet.getString(stopNumberColumn);
+                    written |= metroOutput.write(writer, dvjId, routeName, direction, startTime, operatingDay, stopNumber);
+                }
+                if (written) {
+                    writer.endRow();
+                }
+            }
+        }
+
+        journeyOutput.logSummary(rowCounter);
+        metroOutput.logSummary(metroRowCounter);
+    }
+
+    @Override
+    public boolean isShardable() {
+        return true;
+    }
+
+    @Override
+    public String getChangeIndicatorQuery() {
+        return queryUtils.getJourneyChangeIndicatorQuery();
+    }
+
+    @Override
+    public Object[] getChangeIndicatorParameters() {
+        return queryUtils.getJourneyChangeIndicatorParameters();
+    }
+
+    @Override
+    protected Object[] getQueryParameters(final QueryUtils.DateRange range) {
+        return range.toQueryParameters();
+    }
+
+    protected String getQuery() {
+        String query = new StringBuilder()
+                .append("SELECT ")
+                .append("   DISTINCT CONVERT(CHAR(16), DVJ.Id) AS " + queryUtils.DVJ_ID + ", ")
+                .append("   KVV.StringValue AS " + queryUtils.ROUTE_NAME + ", ")
+                .append("   SUBSTRING(CONVERT(CHAR(16), VJT.IsWorkedOnDirectionOfLineGid), 12, 1) AS " + queryUtils.DIRECTION + ", ")
+                .append("   CONVERT(CHAR(8), DVJ.OperatingDayDate, 112) AS " + queryUtils.OPERATING_DAY + ", ")
+                .append("   RIGHT('0' + (CONVERT(VARCHAR(2), (DATEDIFF(HOUR, '1900-01-01', PlannedStartOffsetDateTime)))), 2) ")
+                .append("       + ':' + RIGHT('0' + CONVERT(VARCHAR(2), ((DATEDIFF(MINUTE, '1900-01-01', PlannedStartOffsetDateTime)) ")
+                .append("       - ((DATEDIFF(HOUR, '1900-01-01', PlannedStartOffsetDateTime) * 60)))), 2) + ':00' AS " + queryUtils.START_TIME + ", ")
+                .append("   VJT.TransportModeCode AS " + queryUtils.TRANSPORT_MODE + ", ")
+                .append("   CONVERT(CHAR(7), JPP.Number) AS " + queryUtils.STOP_NUMBER + " ")
+                .append("FROM ptDOI4_Community.dbo.DatedVehicleJourney AS DVJ ")
+                .append("LEFT JOIN ptDOI4_Community.dbo.VehicleJourney AS VJ ON (DVJ.IsBasedOnVehicleJourneyId = VJ.Id) ")
+                .append("LEFT JOIN ptDOI4_Community.dbo.VehicleJourneyTemplate AS VJT ON (DVJ.IsBasedOnVehicleJourneyTemplateId = VJT.Id) ")
+                .append("LEFT JOIN ptDOI4_Community.T.KeyVariantValue AS KVV ON (KVV.IsForObjectId = VJ.Id) ")
+                .append("LEFT JOIN ptDOI4_Community.dbo.KeyVariantType AS KVT ON (KVT.Id = KVV.IsOfKeyVariantTypeId) ")
+                .append("LEFT JOIN ptDOI4_Community.dbo.KeyType AS KT ON (KT.Id = KVT.IsForKeyTypeId) ")
+                .append("LEFT JOIN ptDOI4_Community.dbo.ObjectType AS OT ON (KT.ExtendsObjectTypeNumber = OT.Number) ")
+                .append("LEFT JOIN ptDOI4_Community.dbo.JourneyPatternPoint AS JPP ")
+                .append("   ON (VJT.StartsAtJourneyPatternPointGid = JPP.Gid AND VJT.TransportModeCode = '" + TRANSPORT_MODE_METRO + "') ")
+                .append("WHERE ")
+                .append("   ( ")
+                .append("       KT.Name = 'JoreIdentity' ")
+                .append("       OR KT.Name = 'JoreRouteIdentity' ")
+                .append("       OR KT.Name = 'RouteName' ")
+                .append("   ) ")
+                .append("   AND OT.Name = 'VehicleJourney' ")
+                .append("   AND VJT.IsWorkedOnDirectionOfLineGid IS NOT NULL ")
+                .append("   AND DVJ.OperatingDayDate >= ? ")
+                .append("   AND DVJ.OperatingDayDate < ? ")
+                .append("   AND DVJ.IsReplacedById IS NULL ")
+                .toString();
+        return query;
+    }
+}
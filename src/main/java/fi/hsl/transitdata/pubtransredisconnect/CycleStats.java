@@ -0,0 +1,78 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+/**
+ * Resource usage of one refresh cycle: duration, peak heap and Redis commands, for comparing cycles as the data
+ * volume grows.
+ */
+public class CycleStats {
+    private static final Logger log = LoggerFactory.getLogger(CycleStats.class);
+
+    private final RedisUtils redisUtils;
+    private final long startTime;
+    private final long startCommands;
+    private final long startFailedCommands;
+    private final long startRoundTrips;
+
+    /** Results of the cycle, set by {@link #finish(int, boolean)} */
+    public long durationMillis;
+    public long peakHeapBytes;
+    public long commands;
+    public long failedCommands;
+    public long roundTrips;
+
+    private CycleStats(final RedisUtils redisUtils) {
+        this.redisUtils = redisUtils;
+        this.startTime = System.currentTimeMillis();
+        this.startCommands = redisUtils.commandCounter.get();
+        this.startFailedCommands = redisUtils.failedCommandCounter.get();
+        this.startRoundTrips = redisUtils.roundTripCounter.get();
+    }
+
+    /**
+     * Starts measuring a cycle. Resets the peak usage of the heap memory pools, so only one cycle can be measured at a time.
+     */
+    public static CycleStats start(final RedisUtils redisUtils) {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+        return new CycleStats(redisUtils);
+    }
+
+    /**
+     * Sum of the peak usages of the heap pools since the start. The pools may peak at different times, so this is an
+     * upper bound of the peak heap usage.
+     */
+    private static long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Logs the stats of the cycle and records them to the metrics
+     */
+    public void finish(final int jobs, final boolean success) {
+        durationMillis = System.currentTimeMillis() - startTime;
+        peakHeapBytes = getPeakHeapBytes();
+        commands = redisUtils.commandCounter.get() - startCommands;
+        failedCommands = redisUtils.failedCommandCounter.get() - startFailedCommands;
+        roundTrips = redisUtils.roundTripCounter.get() - startRoundTrips;
+        log.info("Cycle of {} queries {} in {} ms, peak heap {} MB, {} Redis commands ({} failed) in {} round-trips",
+                jobs, success ? "completed" : "failed", durationMillis, peakHeapBytes / (1024 * 1024),
+                commands, failedCommands, roundTrips);
+        BootstrapperMetrics.recordCycleResources(peakHeapBytes, commands);
+    }
+}
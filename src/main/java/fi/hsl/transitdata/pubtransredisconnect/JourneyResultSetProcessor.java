@@ -7,6 +7,7 @@ import org.slf4j.LoggerFactory;
 import java.sql.ResultSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class JourneyResultSetProcessor extends AbstractResultSetProcessor {
 
@@ -19,44 +20,110 @@ public class JourneyResultSetProcessor extends AbstractResultSetProcessor {
         super(redisUtils, queryUtils);
     }
 
-    public void processResultSet(final ResultSet resultSet) throws Exception {
-        int tripInfoCounter = 0;
-        int lookupCounter = 0;
+    public JourneyResultSetProcessor(final RedisUtils redisUtils, QueryUtils queryUtils, final ChangeTracker changeTracker) {
+        super(redisUtils, queryUtils, changeTracker);
+    }
+
+    public void processResultSet(final ResultSet resultSet, final QueryStats stats) throws Exception {
+        final Output output = new Output();
         int rowCounter = 0;
 
-        while(resultSet.next()) {
-            rowCounter++;
-            final Map<String, String> values = new HashMap<>();
-            values.put(TransitdataProperties.KEY_ROUTE_NAME, resultSet.getString(queryUtils.ROUTE_NAME));
-            values.put(TransitdataProperties.KEY_DIRECTION, resultSet.getString(queryUtils.DIRECTION));
-            values.put(TransitdataProperties.KEY_START_TIME, resultSet.getString(queryUtils.START_TIME));
-            values.put(TransitdataProperties.KEY_OPERATING_DAY, resultSet.getString(queryUtils.OPERATING_DAY));
-
-            final String key = TransitdataProperties.REDIS_PREFIX_DVJ + resultSet.getString(queryUtils.DVJ_ID);
-            String response = redisUtils.setValues(key, values);
-
-            if (redisUtils.checkResponse(response)) {
-                redisUtils.setExpire(key);
-                tripInfoCounter++;
-
-                //Insert a composite key that allows reverse lookup of the dvj id
-                //The format is route-direction-date-time
-                final String joreKey = TransitdataProperties.formatJoreId(resultSet.getString(queryUtils.ROUTE_NAME),
-                        resultSet.getString(queryUtils.DIRECTION), resultSet.getString(queryUtils.OPERATING_DAY),
-                        resultSet.getString(queryUtils.START_TIME));
-                response = redisUtils.setValue(joreKey, resultSet.getString(queryUtils.DVJ_ID));
+        final int dvjIdColumn = resultSet.findColumn(queryUtils.DVJ_ID);
+        final int routeNameColumn = resultSet.findColumn(queryUtils.ROUTE_NAME);
+        final int directionColumn = resultSet.findColumn(queryUtils.DIRECTION);
+        final int startTimeColumn = resultSet.findColumn(queryUtils.START_TIME);
+        final int operatingDayColumn = resultSet.findColumn(queryUtils.OPERATING_DAY);
+
+        try (RedisBatchWriter writer = redisUtils.newBatchWriter(getName())) {
+            while (stats.next(resultSet)) {
+                rowCounter++;
+                final String dvjId = resultSet.getString(dvjIdColumn);
+                final String routeName = resultSet.getString(routeNameColumn);
+                final String direction = resultSet.getString(directionColumn);
+                final String startTime = resultSet.getString(startTimeColumn);
+                final String operatingDay = resultSet.getString(operatingDayColumn);
+                if (output.write(writer, dvjId, routeName, direction, startTime, operatingDay)) {
+                    writer.endRow();
+                }
+            }
+        }
+
+        output.logSummary(rowCounter);
+    }
+
+    /**
+     * Writes the trip info and reverse-lookup keys of journeys and counts the keys written.
+     * Used for one result set at a time.
+     */
+    class Output {
+        private final AtomicInteger tripInfoCounter = new AtomicInteger(0);
+        private final AtomicInteger lookupCounter = new AtomicInteger(0);
+
+        /**
+         * @return false if the journey is unchanged and nothing was written
+         */
+        boolean write(final RedisBatchWriter writer, final String dvjId, final String routeName, final String direction,
+                      final String startTime, final String operatingDay) {
+            final String key = TransitdataProperties.REDIS_PREFIX_DVJ + dvjId;
+            final int fingerprint = ChangeTracker.fingerprint(routeName, direction, startTime, operatingDay);
+            if (!changeTracker.hasChanged(key, fingerprint)) {
+                return false;
+            }
+
+            //The map is kept in the pipeline buffer until the batch is flushed, so it can't be reused
+            final Map<String, String> values = new HashMap<>(8);
+            values.put(TransitdataProperties.KEY_ROUTE_NAME, routeName);
+            values.put(TransitdataProperties.KEY_DIRECTION, direction);
+            values.put(TransitdataProperties.KEY_START_TIME, startTime);
+            values.put(TransitdataProperties.KEY_OPERATING_DAY, operatingDay);
+
+            writer.setValuesWithExpire(key, values, response -> {
                 if (redisUtils.checkResponse(response)) {
-                    redisUtils.setExpire(joreKey);
-                    lookupCounter++;
+                    changeTracker.markWritten(key, fingerprint);
+                    tripInfoCounter.incrementAndGet();
                 } else {
-                    log.error("Failed to set reverse-lookup key {}, Redis returned {}", joreKey, response);
+                    log.error("Failed to set Trip details for key {}, Redis returned {}", key, response);
                 }
-            } else {
-                log.error("Failed to set Trip details for key {}, Redis returned {}", key, response);
-            }
+            });
+
+            //Insert a composite key that allows reverse lookup of the dvj id
+            //The format is route-direction-date-time
+            final String joreKey = TransitdataProperties.formatJoreId(routeName, direction, operatingDay, startTime);
+            //Buckets of the reverse-lookup keys are partitioned by operating day, so that past days expire
+            writer.setLookupValue(joreKey, operatingDay, dvjId, success -> {
+                if (success) {
+                    lookupCounter.incrementAndGet();
+                } else {
+                    changeTracker.forget(key);
+                    log.error("Failed to set reverse-lookup key {}", joreKey);
+                }
+            });
+            return true;
         }
 
-        log.info("Inserted {} trip info and {} reverse-lookup keys for {} DB rows", tripInfoCounter, lookupCounter, rowCounter);
+        void logSummary(final int rowCounter) {
+            log.info("Inserted {} trip info and {} reverse-lookup keys for {} DB rows", tripInfoCounter.get(), lookupCounter.get(), rowCounter);
+        }
+    }
+
+    @Override
+    public boolean isShardable() {
+        return true;
+    }
+
+    @Override
+    public String getChangeIndicatorQuery() {
+        return queryUtils.getJourneyChangeIndicatorQuery();
+    }
+
+    @Override
+    public Object[] getChangeIndicatorParameters() {
+        return queryUtils.getJourneyChangeIndicatorParameters();
+    }
+
+    @Override
+    protected Object[] getQueryParameters(final QueryUtils.DateRange range) {
+        return range.toQueryParameters();
     }
 
     protected String getQuery() {
@@ -84,8 +151,8 @@ public class JourneyResultSetProcessor extends AbstractResultSetProcessor {
                 .append("   ) ")
                 .append("   AND OT.Name = 'VehicleJourney' ")
                 .append("   AND VJT.IsWorkedOnDirectionOfLineGid IS NOT NULL ")
-                .append("   AND DVJ.OperatingDayDate >= '" + queryUtils.from + "' ")
-                .append("   AND DVJ.OperatingDayDate < '" + queryUtils.to + "' ")
+                .append("   AND DVJ.OperatingDayDate >= ? ")
+                .append("   AND DVJ.OperatingDayDate < ? ")
                 .append("   AND DVJ.IsReplacedById IS NULL ")
                 .toString();
         return query;
@@ -0,0 +1,70 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import redis.clients.jedis.Jedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Compact layout for small lookup values, such as stop numbers by JPP Gid and DVJ ids by JORE id. Instead of one
+ * Redis key per value, the values are stored as fields of small hashes called buckets, which Redis keeps in the
+ * memory-efficient listpack encoding as long as they stay under hash-max-listpack-entries fields. This avoids the
+ * per-key overhead of hundreds of thousands of keys.
+ *
+ * The field is the original key and the bucket key is the prefix of the original key (up to and including the first
+ * colon) followed by "b:", an optional partition and the CRC32 of the original key modulo the bucket count,
+ * f.ex. "jpp:b:421" or "jore:b:20240131:17". The TTL is set per bucket. Values that are only valid for some time
+ * should be partitioned, f.ex. by operating day, so that their buckets expire.
+ */
+public class KeyBuckets {
+    public static final String BUCKET_MARKER = "b:";
+
+    public enum Layout {
+        /** One key per value, the original format */
+        KEYS,
+        /** Values only in buckets */
+        BUCKETS,
+        /** Both formats, f.ex. while consumers are migrated to buckets */
+        BOTH;
+
+        public boolean writesKeys() {
+            return this != BUCKETS;
+        }
+
+        public boolean writesBuckets() {
+            return this != KEYS;
+        }
+    }
+
+    public final int bucketCount;
+
+    public KeyBuckets(final int bucketCount) {
+        this.bucketCount = Math.max(1, bucketCount);
+    }
+
+    /**
+     * @param partition f.ex. the operating day, null for none
+     */
+    public String getBucketKey(final String key, final String partition) {
+        final int prefixEnd = key.indexOf(':') + 1;
+        final CRC32 crc = new CRC32();
+        crc.update(key.getBytes(StandardCharsets.UTF_8));
+        final long bucket = crc.getValue() % bucketCount;
+
+        final StringBuilder bucketKey = new StringBuilder(prefixEnd + 24);
+        bucketKey.append(key, 0, prefixEnd).append(BUCKET_MARKER);
+        if (partition != null) {
+            bucketKey.append(partition).append(':');
+        }
+        return bucketKey.append(bucket).toString();
+    }
+
+    /**
+     * Reads a value written in the bucket layout
+     *
+     * @return the value, or null if there is none
+     */
+    public String get(final Jedis jedis, final String key, final String partition) {
+        return jedis.hget(getBucketKey(key, partition), key);
+    }
+}
@@ -0,0 +1,236 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the query jobs of a refresh cycle between bootstrapper instances. Each job is a work unit (processor and
+ * date range) that an instance must hold a Redis lease on to process. Leases are renewed while the unit is processed
+ * and expire if the instance fails, after which another instance takes the unit over. An instance leases only as many
+ * units at a time as it processes concurrently, so that the units of a cycle are spread over the instances.
+ *
+ * A processed unit is marked done with the time its processing started. Other instances count the unit as done in
+ * their cycle if it was started after their cycle started, with a small tolerance for the hourly polls of the
+ * instances starting at slightly different times.
+ *
+ * Leases of a unit and its done marker share a hash tag, so they are in the same slot of a Redis Cluster.
+ */
+public class LeaseCoordinator implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(LeaseCoordinator.class);
+
+    public static final String KEY_PREFIX = "bootstrapper:";
+    private static final int DONE_TTL_SECS = 24 * 60 * 60;
+    private static final long START_TOLERANCE_MILLIS = 10 * 1000;
+
+    //KEYS[1] lease, ARGV[1] instance, ARGV[2] lease time in ms
+    private static final String ACQUIRE_SCRIPT =
+            "if redis.call('SET', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then return 1 else return 0 end";
+    private static final String RENEW_SCRIPT =
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('PEXPIRE', KEYS[1], ARGV[2]) else return 0 end";
+    private static final String RELEASE_SCRIPT =
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) else return 0 end";
+    //KEYS[1] lease, KEYS[2] done marker, ARGV[1] instance, ARGV[2] start time of the unit, ARGV[3] TTL of the marker
+    private static final String COMPLETE_SCRIPT =
+            "redis.call('SET', KEYS[2], ARGV[2], 'EX', ARGV[3]) " +
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then redis.call('DEL', KEYS[1]) end " +
+            "return 1";
+
+    /**
+     * Runs query jobs and returns the ones that failed
+     */
+    public interface JobRunner {
+        List<QueryJob> run(List<QueryJob> jobs) throws Exception;
+    }
+
+    private final RedisUtils redisUtils;
+    public final String instanceId = UUID.randomUUID().toString();
+    public final long leaseMillis;
+    private final long pollMillis;
+    private final long waitTimeoutMillis;
+    /** Maximum number of units leased and processed at a time */
+    private final int maxUnitsPerRun;
+
+    /** Units this instance holds a lease on, and the time their processing started */
+    private final Map<String, Long> heldUnits = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "lease-renewer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param maxUnitsPerRun number of units processed at a time, f.ex. the number of parallel queries
+     */
+    public LeaseCoordinator(final RedisUtils redisUtils, final long leaseSecs, final long waitTimeoutSecs, final int maxUnitsPerRun) {
+        this.redisUtils = redisUtils;
+        this.leaseMillis = TimeUnit.SECONDS.toMillis(Math.max(3, leaseSecs));
+        this.pollMillis = leaseMillis / 3;
+        this.waitTimeoutMillis = TimeUnit.SECONDS.toMillis(waitTimeoutSecs);
+        this.maxUnitsPerRun = Math.max(1, maxUnitsPerRun);
+        renewer.scheduleAtFixedRate(this::renewLeases, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Processes the jobs that are not done or leased by other instances and waits for the rest to be done by them,
+     * taking over the jobs whose lease expires.
+     *
+     * @param cycleStartTime start time of the cycle, units started by other instances before it are run again
+     * @return jobs that failed or were not done by any instance before the wait timeout, in their original order
+     */
+    public List<QueryJob> run(final List<QueryJob> jobs, final long cycleStartTime, final JobRunner runner) throws Exception {
+        final List<QueryJob> pending = new ArrayList<>(jobs);
+        final Set<QueryJob> failed = new HashSet<>();
+        final long deadline = System.currentTimeMillis() + waitTimeoutMillis;
+        int processed = 0;
+        while (true) {
+            final List<QueryJob> acquired = new ArrayList<>();
+            final Iterator<QueryJob> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                final String unit = getUnit(iterator.next());
+                if (isDone(unit, cycleStartTime)) {
+                    iterator.remove();
+                }
+            }
+            for (QueryJob job : pending) {
+                if (acquired.size() >= maxUnitsPerRun) {
+                    break;
+                }
+                if (tryAcquire(getUnit(job))) {
+                    acquired.add(job);
+                }
+            }
+            pending.removeAll(acquired);
+
+            if (!acquired.isEmpty()) {
+                log.info("Processing {} work units, {} remaining or held by other instances", acquired.size(), pending.size());
+                final List<QueryJob> runFailed;
+                try {
+                    runFailed = runner.run(acquired);
+                } catch (Exception e) {
+                    for (QueryJob job : acquired) {
+                        release(getUnit(job));
+                    }
+                    throw e;
+                }
+                for (QueryJob job : acquired) {
+                    if (runFailed.contains(job)) {
+                        //Let other instances retry the unit
+                        release(getUnit(job));
+                        failed.add(job);
+                    } else {
+                        complete(getUnit(job));
+                        processed++;
+                    }
+                }
+                //Check the remaining units again, other instances may have done some of them meanwhile
+                continue;
+            }
+            if (pending.isEmpty()) {
+                break;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                log.warn("{} work units were not done by other instances in {} secs", pending.size(), waitTimeoutMillis / 1000);
+                failed.addAll(pending);
+                break;
+            }
+            Thread.sleep(pollMillis);
+        }
+        log.info("Processed {} of {} work units, the rest were done by other instances or failed", processed, jobs.size());
+
+        final List<QueryJob> failedJobs = new ArrayList<>();
+        for (QueryJob job : jobs) {
+            if (failed.contains(job)) {
+                failedJobs.add(job);
+            }
+        }
+        return failedJobs;
+    }
+
+    static String getUnit(final QueryJob job) {
+        final QueryUtils.DateRange range = job.range != null ? job.range : job.processor.queryUtils.getWindow();
+        return job.processor.getName() + ":" + range.from + ":" + range.to;
+    }
+
+    private static String getLeaseKey(final String unit) {
+        return KEY_PREFIX + "{" + unit + "}:lease";
+    }
+
+    private static String getDoneKey(final String unit) {
+        return KEY_PREFIX + "{" + unit + "}:done";
+    }
+
+    private boolean isDone(final String unit, final long cycleStartTime) {
+        final String doneKey = getDoneKey(unit);
+        final String startTime = redisUtils.withJedis(doneKey, client -> client.get(doneKey));
+        return startTime != null && Long.parseLong(startTime) >= cycleStartTime - START_TOLERANCE_MILLIS;
+    }
+
+    private boolean tryAcquire(final String unit) {
+        final long startTime = System.currentTimeMillis();
+        if (eval(ACQUIRE_SCRIPT, Collections.singletonList(getLeaseKey(unit)), instanceId, Long.toString(leaseMillis))) {
+            heldUnits.put(unit, startTime);
+            log.debug("Acquired lease on {}", unit);
+            return true;
+        }
+        return false;
+    }
+
+    private void complete(final String unit) {
+        final Long startTime = heldUnits.remove(unit);
+        eval(COMPLETE_SCRIPT, Arrays.asList(getLeaseKey(unit), getDoneKey(unit)), instanceId,
+                Long.toString(startTime != null ? startTime : System.currentTimeMillis()), Integer.toString(DONE_TTL_SECS));
+    }
+
+    private void release(final String unit) {
+        heldUnits.remove(unit);
+        try {
+            eval(RELEASE_SCRIPT, Collections.singletonList(getLeaseKey(unit)), instanceId);
+        } catch (Exception e) {
+            log.warn("Failed to release lease on {}, it expires in {} secs", unit, leaseMillis / 1000, e);
+        }
+    }
+
+    private void renewLeases() {
+        for (String unit : heldUnits.keySet()) {
+            try {
+                if (!eval(RENEW_SCRIPT, Collections.singletonList(getLeaseKey(unit)), instanceId, Long.toString(leaseMillis))) {
+                    //Another instance has taken the unit over, the unit is then processed twice which is harmless
+                    log.warn("Lost lease on {}", unit);
+                    heldUnits.remove(unit);
+                }
+            } catch (Exception e) {
+                log.warn("Failed to renew lease on {}", unit, e);
+            }
+        }
+    }
+
+    /**
+     * @return whether the script returned 1
+     */
+    private boolean eval(final String script, final List<String> keys, final String... args) {
+        final Object result = redisUtils.withJedis(keys.get(0), client -> client.eval(script, keys, Arrays.asList(args)));
+        return result instanceof Long && (Long) result == 1L;
+    }
+
+    @Override
+    public void close() {
+        renewer.shutdownNow();
+        for (String unit : new ArrayList<>(heldUnits.keySet())) {
+            release(unit);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+/**
+ * Map from primitive long keys to strings with open addressing and linear probing. Keys are stored unboxed in a
+ * single array, which takes a fraction of the memory of a HashMap with Long keys.
+ *
+ * Not thread-safe.
+ */
+public class LongStringMap {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private String[] values;
+    private int size = 0;
+
+    public interface EntryConsumer {
+        void accept(long key, String value);
+    }
+
+    public LongStringMap(final int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new String[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the value of the key, or null if there is none
+     */
+    public String get(final long key) {
+        final int mask = keys.length - 1;
+        for (int i = index(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param value must not be null
+     */
+    public void put(final long key, final String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        if (size + 1 > keys.length * LOAD_FACTOR) {
+            resize(keys.length << 1);
+        }
+        final int mask = keys.length - 1;
+        int i = index(key, mask);
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    public void remove(final long key) {
+        final int mask = keys.length - 1;
+        int i = index(key, mask);
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == null) {
+            return;
+        }
+        values[i] = null;
+        size--;
+        //Move the following entries of the probe sequence back so that lookups don't stop at the hole
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            final int home = index(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                values[j] = null;
+                hole = j;
+            }
+        }
+    }
+
+    public void forEach(final EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void resize(final int capacity) {
+        final long[] oldKeys = keys;
+        final String[] oldValues = values;
+        keys = new long[capacity];
+        values = new String[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int index(final long key, final int mask) {
+        //Spread the bits, Gids share their high digits
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -1,13 +1,13 @@
 package fi.hsl.transitdata.pubtransredisconnect;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import java.sql.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.microsoft.sqlserver.jdbc.SQLServerException;
 import com.typesafe.config.*;
 import fi.hsl.common.config.ConfigParser;
 import fi.hsl.common.pulsar.PulsarApplication;
@@ -17,6 +17,7 @@ import org.slf4j.LoggerFactory;
 
 public class Main {
     private static final Logger log = LoggerFactory.getLogger(Main.class);
+    private static final long POLL_PERIOD_SECS = 60 * 60;
 
     private final Config config;
 
@@ -28,6 +29,36 @@ public class Main {
 
     private RedisUtils redisUtils;
     private QueryUtils queryUtils;
+    private ProcessorRegistry registry;
+
+    private int queryFetchSize;
+    private String queryHints;
+    private Path snapshotPath;
+    private Path bulkLoadPath;
+    private Path bulkReplayPath;
+    private boolean fastStartupEnabled;
+    private int fastStartupDays;
+    private int queryShardSizeInDays;
+    private boolean parallelQueriesEnabled;
+    private int queryParallelism;
+
+    private RetryPolicy retryPolicy;
+    private int maxResumes;
+    private long resumeDelaySecs;
+    /** Progress of the current cycle, kept after a failure until the cycle is resumed or abandoned */
+    private RefreshCheckpoint checkpoint;
+
+    /** Shares the queries with other instances, null if this is the only instance */
+    private LeaseCoordinator leaseCoordinator;
+
+    private ChangeDetector changeDetector;
+    /** Runs the change indicator queries, keeps its connection and prepared statements between checks */
+    private QueryProcessor changeQueryProcessor;
+    private long changeDetectionIntervalSecs;
+
+    private boolean incrementalRefreshEnabled;
+    private long fullRefreshIntervalMillis;
+    private long lastFullRefreshTime = 0;
 
     private final int UNHEALTHY_UPDATE_INTERVAL_SECS;
     private long lastUpdateTime;
@@ -56,7 +87,36 @@ public class Main {
             context.getHealthServer().addCheck(() -> lastUpdateTimeHealthy() );
         }
         initialize();
+        if (bulkLoadPath != null) {
+            final boolean success = bulkLoad();
+            redisUtils.close();
+            System.exit(success ? 0 : 1);
+        }
+        final int metricsPort = config.getInt("bootstrapper.metricsPort");
+        if (metricsPort > 0) {
+            BootstrapperMetrics.startServer(metricsPort, config.getString("bootstrapper.metricsPath"));
+        }
         startPolling();
+        if (bulkReplayPath != null) {
+            try {
+                RespWriter.replay(bulkReplayPath, config.getString("redis.host"), config.getInt("redis.port"));
+            } catch (Exception e) {
+                log.warn("Failed to replay bulk load file", e);
+            }
+        }
+        if (snapshotPath != null) {
+            //Restore the cache from the previous run before querying PubTrans, which can be slow or unavailable
+            try {
+                CacheSnapshot.replay(snapshotPath, redisUtils);
+            } catch (Exception e) {
+                log.warn("Failed to replay cache snapshot", e);
+            }
+        }
+        if (fastStartupEnabled) {
+            //Load the near-term data first so that the cache is usable as soon as possible,
+            //the rest of the window is backfilled by the full run below
+            processNearTerm();
+        }
         //Invoke manually the first task immediately
         process();
 
@@ -68,17 +128,134 @@ public class Main {
     }
 
     private void initialize() {
-        redisUtils = new RedisUtils(context);
+        final String bulkLoadFile = config.getString("bootstrapper.bulkLoadPath");
+        if (!bulkLoadFile.isEmpty()) {
+            //Decided before creating any Redis client, bulk load mode doesn't connect to Redis
+            bulkLoadPath = Paths.get(bulkLoadFile);
+            log.info("Bulk load mode, writing Redis commands to " + bulkLoadPath + " instead of Redis");
+            redisUtils = RedisUtils.forBulkLoad(config);
+        } else {
+            redisUtils = new RedisUtils(context);
+        }
         final int queryHistoryInDays = config.getInt("bootstrapper.queryHistoryInDays");
         final int queryFutureInDays = config.getInt("bootstrapper.queryFutureInDays");
         final int queryMinutesFromEvenHour = config.getInt("bootstrapper.queryMinutesFromEvenHour");
         log.info("Fetching data from -" + queryHistoryInDays + " days to +" + queryFutureInDays + " days. "
             + queryMinutesFromEvenHour + " minutes from even hour.");
         queryUtils = new QueryUtils(queryHistoryInDays, queryFutureInDays, queryMinutesFromEvenHour);
+
+        final String snapshotFile = config.getString("bootstrapper.snapshotPath");
+        if (!snapshotFile.isEmpty()) {
+            snapshotPath = Paths.get(snapshotFile);
+            log.info("Storing cache snapshots to " + snapshotPath);
+        }
+        final String bulkReplayFile = config.getString("bootstrapper.bulkReplayPath");
+        if (!bulkReplayFile.isEmpty() && redisUtils.clusterRouter != null) {
+            log.warn("Bulk load files can't be replayed to Redis Cluster, ignoring " + bulkReplayFile);
+        } else if (!bulkReplayFile.isEmpty()) {
+            bulkReplayPath = Paths.get(bulkReplayFile);
+            log.info("Replaying Redis commands from " + bulkReplayPath + " at startup");
+        }
+        fastStartupEnabled = config.getBoolean("bootstrapper.fastStartupEnabled");
+        fastStartupDays = config.getInt("bootstrapper.fastStartupDays");
+        if (fastStartupEnabled) {
+            log.info("Fast startup enabled, loading +-" + fastStartupDays + " days before the full window.");
+        }
+        queryFetchSize = config.getInt("bootstrapper.queryFetchSize");
+        queryHints = config.getString("bootstrapper.queryHints").trim();
+        if (!queryHints.isEmpty()) {
+            log.info("Using query hints: " + queryHints);
+        }
+        queryShardSizeInDays = config.getInt("bootstrapper.queryShardSizeInDays");
+        if (queryShardSizeInDays > 0) {
+            log.info("Splitting journey queries into shards of " + queryShardSizeInDays + " days.");
+        }
+        parallelQueriesEnabled = config.getBoolean("bootstrapper.parallelQueriesEnabled");
+        queryParallelism = config.getInt("bootstrapper.queryParallelism");
+        if (parallelQueriesEnabled) {
+            log.info("Running queries in parallel with at most " + queryParallelism + " concurrent queries.");
+        }
+
+        retryPolicy = new RetryPolicy(config.getInt("bootstrapper.queryRetryAttempts"),
+                config.getLong("bootstrapper.queryRetryInitialBackoffMillis"),
+                config.getLong("bootstrapper.queryRetryMaxBackoffMillis"));
+        maxResumes = config.getInt("bootstrapper.refreshMaxResumes");
+        resumeDelaySecs = config.getLong("bootstrapper.refreshResumeDelaySecs");
+        log.info("Retrying failed queries " + retryPolicy.maxAttempts + " times, resuming interrupted refreshes at most "
+                + maxResumes + " times after " + resumeDelaySecs + " secs.");
+
+        incrementalRefreshEnabled = config.getBoolean("bootstrapper.incrementalRefreshEnabled");
+        final int fullRefreshIntervalHours = config.getInt("bootstrapper.fullRefreshIntervalHours");
+        fullRefreshIntervalMillis = TimeUnit.HOURS.toMillis(fullRefreshIntervalHours);
+        if (redisUtils.generationsEnabled && (incrementalRefreshEnabled || fastStartupEnabled || snapshotPath != null)) {
+            log.warn("Incremental refresh, fast startup and snapshots can't be used with cache generations, disabling them.");
+            incrementalRefreshEnabled = false;
+            fastStartupEnabled = false;
+            snapshotPath = null;
+        }
+        if (config.getBoolean("bootstrapper.coordinationEnabled") && bulkLoadPath == null) {
+            if (redisUtils.generationsEnabled) {
+                log.warn("Multi-instance coordination can't be used with cache generations, disabling it.");
+            } else {
+                leaseCoordinator = new LeaseCoordinator(redisUtils, config.getLong("bootstrapper.coordinationLeaseSecs"),
+                        config.getLong("bootstrapper.coordinationWaitTimeoutSecs"), parallelQueriesEnabled ? queryParallelism : 1);
+                log.info("Sharing queries with other instances using Redis leases of " + leaseCoordinator.leaseMillis / 1000
+                        + " secs, instance id " + leaseCoordinator.instanceId);
+                //Release the held leases on shutdown so that other instances don't wait for them to expire
+                final LeaseCoordinator coordinator = leaseCoordinator;
+                Runtime.getRuntime().addShutdownHook(new Thread(coordinator::close, "lease-release"));
+                if (incrementalRefreshEnabled || snapshotPath != null) {
+                    //Each instance only sees the rows of the work units it processes
+                    log.warn("Incremental refresh and snapshots can't be used with multi-instance coordination, disabling them.");
+                    incrementalRefreshEnabled = false;
+                    snapshotPath = null;
+                }
+            }
+        }
+        if (incrementalRefreshEnabled) {
+            log.info("Incremental refresh enabled, full refresh every " + fullRefreshIntervalHours + " hours.");
+            if (TimeUnit.HOURS.toSeconds(fullRefreshIntervalHours) >= redisUtils.redisTTLInSeconds) {
+                log.warn("Full refresh interval is not shorter than Redis TTL, unchanged keys may expire between full refreshes!");
+            }
+        }
+
+        boolean differentialStopsEnabled = config.getBoolean("bootstrapper.differentialStopsEnabled");
+        if (differentialStopsEnabled && (redisUtils.generationsEnabled || leaseCoordinator != null)) {
+            log.warn("Differential stop writes can't be used with cache generations or multi-instance coordination, disabling them.");
+            differentialStopsEnabled = false;
+        }
+        if (differentialStopsEnabled) {
+            log.info("Writing only changed stops, all stops are rewritten every " + redisUtils.redisTTLInSeconds / 2 + " secs.");
+        }
+
+        registry = ProcessorFactory.createRegistry(config, redisUtils, queryUtils, TimeUnit.SECONDS.toMillis(POLL_PERIOD_SECS),
+                incrementalRefreshEnabled, differentialStopsEnabled);
+
+        if (config.getBoolean("bootstrapper.changeDetectionEnabled")) {
+            changeDetector = new ChangeDetector(registry.getProcessors());
+            changeQueryProcessor = new QueryProcessor(connectionString, 0, "");
+            changeDetectionIntervalSecs = config.getLong("bootstrapper.changeDetectionIntervalSecs");
+            log.info("Checking PubTrans for changes every " + changeDetectionIntervalSecs + " secs.");
+        }
+    }
+
+    /**
+     * @return queries to run in this cycle, the most urgent ones first, then by the priority of the processor
+     */
+    private List<QueryJob> createQueryJobs(final List<AbstractResultSetProcessor> processors) {
+        return ProcessorFactory.createQueryJobs(registry, processors, queryUtils, queryShardSizeInDays);
+    }
+
+    private List<QueryJob> createNearTermQueryJobs(final List<AbstractResultSetProcessor> processors, final int days) {
+        return ProcessorFactory.createNearTermQueryJobs(processors, queryUtils, days);
+    }
+
+    private boolean isFullRefreshDue() {
+        return !incrementalRefreshEnabled || System.currentTimeMillis() - lastFullRefreshTime >= fullRefreshIntervalMillis;
     }
 
     private void startPolling() {
-        final long periodInSecs = 60 * 60;
+        final long periodInSecs = POLL_PERIOD_SECS;
         final long delayInSecs = queryUtils.secondsUntilNextEvenHourPlusMinutes();
 
         log.info("Starting scheduled poll task. First poll execution in " + delayInSecs + "secs");
@@ -93,36 +270,132 @@ public class Main {
 
         executor = Executors.newSingleThreadScheduledExecutor();
         executor.scheduleAtFixedRate(task, delayInSecs, periodInSecs, TimeUnit.SECONDS);
+        for (ProcessorRegistry.Schedule schedule : registry.getNearTermSchedules()) {
+            log.info("Refreshing {}", schedule);
+            executor.scheduleAtFixedRate(() -> processSchedule(schedule), schedule.intervalMillis, schedule.intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (changeDetector != null) {
+            //Read the baseline before the first refresh so that changes made during it are detected
+            checkForChanges();
+            executor.scheduleWithFixedDelay(this::checkForChanges, changeDetectionIntervalSecs, changeDetectionIntervalSecs, TimeUnit.SECONDS);
+        }
     }
 
+    /**
+     * Refreshes the processors whose data has changed in PubTrans since the previous check
+     */
+    private void checkForChanges() {
+        if (processingActive.get() || checkpoint != null) {
+            //Check again after the running or interrupted refresh, which may pick up the changes anyway
+            return;
+        }
+        final List<AbstractResultSetProcessor> changed;
+        try {
+            changed = changeDetector.detectChanges(changeQueryProcessor);
+        } catch (Exception e) {
+            log.warn("Failed to check PubTrans for changes", e);
+            //Reconnect on the next check
+            changeQueryProcessor.close();
+            return;
+        }
+        if (!changed.isEmpty()) {
+            processChanged(changed);
+        }
+    }
+
+    private void processChanged(final List<AbstractResultSetProcessor> changed) {
+        if (redisUtils.generationsEnabled) {
+            //A generation must contain the keys of all processors
+            log.info("Changes detected in PubTrans, fetching all data");
+            process(createQueryJobs(registry.getProcessors()), true, true);
+            return;
+        }
+        log.info("Changes detected in PubTrans, fetching data of {} processors", changed.size());
+        process(createQueryJobs(changed), !incrementalRefreshEnabled, true);
+    }
+
+    /**
+     * Refreshes the processors whose whole window is due, which is all of them on the first run
+     */
     private void process() {
-        if (!processingActive.getAndSet(true)) {
-            log.info("Fetching data");
-            try (Connection connection = DriverManager.getConnection(connectionString)) {
-                final QueryProcessor queryProcessor = new QueryProcessor(connection);
-                final JourneyResultSetProcessor journeyResultSetProcessor = new JourneyResultSetProcessor(redisUtils, queryUtils);
-                final StopResultSetProcessor stopResultSetProcessor = new StopResultSetProcessor(redisUtils, queryUtils);
-                final MetroJourneyResultSetProcessor metroJourneyResultSetProcessor = new MetroJourneyResultSetProcessor(redisUtils, queryUtils);
+        final List<AbstractResultSetProcessor> due = registry.getDueProcessors(System.currentTimeMillis());
+        if (due.isEmpty()) {
+            log.info("No processors due to be refreshed");
+            return;
+        }
+        final boolean fullRefresh = isFullRefreshDue();
+        log.info("Fetching data of {} processors ({} refresh)", due.size(), fullRefresh ? "full" : "incremental");
+        process(createQueryJobs(due), fullRefresh, true);
+    }
 
-                queryProcessor.executeAndProcessQuery(journeyResultSetProcessor);
-                queryProcessor.executeAndProcessQuery(stopResultSetProcessor);
-                queryProcessor.executeAndProcessQuery(metroJourneyResultSetProcessor);
+    private void processNearTerm() {
+        log.info("Fetching near-term data for fast startup");
+        process(createNearTermQueryJobs(registry.getProcessors(), fastStartupDays), true, false);
+    }
 
-                redisUtils.updateTimestamp();
+    private void processSchedule(final ProcessorRegistry.Schedule schedule) {
+        if (processingActive.get() || checkpoint != null || !schedule.isDue(System.currentTimeMillis())) {
+            //Don't abandon an interrupted refresh, and skip if a refresh of the whole window just covered these days
+            return;
+        }
+        log.info("Fetching data of {}", schedule);
+        queryUtils.updateFromToDates();
+        process(createNearTermQueryJobs(Collections.singletonList(schedule.processor), schedule.nearTermDays),
+                !incrementalRefreshEnabled, false, schedule);
+    }
 
-                lastUpdateTime = System.currentTimeMillis();
-                log.info("All data processed, thank you.");
-            }
-            catch (SQLServerException sqlServerException) {
-                String msg = "SQLServerException during query, Driver Error code: "
-                        + sqlServerException.getErrorCode()
-                        + " and SQL State: " + sqlServerException.getSQLState();
-                log.error(msg, sqlServerException);
-                shutdown();
+    /**
+     * Starts a new refresh cycle, abandoning any interrupted cycle that has not been resumed yet.
+     *
+     * @param completeWindow whether the jobs cover the whole query window
+     */
+    private void process(final List<QueryJob> jobs, final boolean fullRefresh, final boolean completeWindow) {
+        process(jobs, fullRefresh, completeWindow, null);
+    }
+
+    /**
+     * @param nearTermSchedule the schedule run by this cycle, null if not a near-term schedule
+     */
+    private void process(final List<QueryJob> jobs, final boolean fullRefresh, final boolean completeWindow,
+                         final ProcessorRegistry.Schedule nearTermSchedule) {
+        if (!processingActive.getAndSet(true)) {
+            try {
+                if (checkpoint != null) {
+                    log.warn("Abandoning interrupted refresh with {} of {} queries remaining, starting a new one",
+                            checkpoint.getRemainingJobs().size(), checkpoint.totalJobs);
+                    abandonCycle();
+                }
+                List<QueryJob> cycleJobs = jobs;
+                boolean full = fullRefresh;
+                boolean complete = completeWindow;
+                ProcessorRegistry.Schedule schedule = nearTermSchedule;
+                //Incremental refreshes skip keys written before, which Redis may have lost since, f.ex. in a flush
+                if (lastFullRefreshTime > 0 && !redisUtils.hasCacheTimestamp()) {
+                    log.warn("Cache timestamp is missing from Redis, the cache has been lost. Running a full refresh of all processors.");
+                    for (AbstractResultSetProcessor processor : registry.getProcessors()) {
+                        processor.cacheLost();
+                    }
+                    cycleJobs = createQueryJobs(registry.getProcessors());
+                    full = true;
+                    complete = true;
+                    schedule = null;
+                }
+                checkpoint = new RefreshCheckpoint(cycleJobs, full, complete);
+                checkpoint.nearTermSchedule = schedule;
+                checkpoint.stats = CycleStats.start(redisUtils);
+                for (AbstractResultSetProcessor processor : checkpoint.processors) {
+                    processor.changeTracker.beginCycle(full);
+                }
+                redisUtils.beginGeneration();
+                final boolean allProcessors = checkpoint.processors.size() == registry.getProcessors().size();
+                if (snapshotPath != null && full && complete && allProcessors) {
+                    redisUtils.snapshotRecorder = CacheSnapshot.startRecording(snapshotPath);
+                }
+                runCycle();
             }
             catch (Exception e) {
                 log.error("Unknown exception during query ", e);
-                shutdown();
+                abandonCycle();
             }
             finally {
                 processingActive.set(false);
@@ -133,15 +406,164 @@ public class Main {
         }
     }
 
-    private void shutdown() {
-        log.warn("Shutting down the application.");
-        if (redisUtils.jedis != null) {
-            redisUtils.jedis.close();
+    /**
+     * Continues the interrupted cycle from its checkpoint, running only the queries that did not complete
+     *
+     * @param scheduled checkpoint the resume was scheduled for, ignored if a new cycle has been started since
+     */
+    private void resume(final RefreshCheckpoint scheduled) {
+        if (!processingActive.getAndSet(true)) {
+            try {
+                if (checkpoint != null && checkpoint == scheduled) {
+                    checkpoint.resumed();
+                    BootstrapperMetrics.recordResume();
+                    log.info("Resuming refresh from checkpoint, {} of {} queries remaining (resume {}/{})",
+                            checkpoint.getRemainingJobs().size(), checkpoint.totalJobs, checkpoint.getResumes(), maxResumes);
+                    runCycle();
+                }
+            }
+            catch (Exception e) {
+                log.error("Unknown exception during query ", e);
+                abandonCycle();
+            }
+            finally {
+                processingActive.set(false);
+            }
+        }
+        else {
+            log.warn("Processing already active, will not resume the interrupted refresh.");
+        }
+    }
+
+    private void runCycle() throws Exception {
+        final List<QueryJob> failed = leaseCoordinator != null
+                ? leaseCoordinator.run(checkpoint.getRemainingJobs(), checkpoint.startTime, this::runQueries)
+                : runQueries(checkpoint.getRemainingJobs());
+        checkpoint.update(failed);
+
+        if (checkpoint.isComplete()) {
+            completeCycle();
+        } else if (checkpoint.getResumes() < maxResumes) {
+            log.warn("{} of {} queries failed, resuming from checkpoint in {} seconds.",
+                    failed.size(), checkpoint.totalJobs, resumeDelaySecs);
+            final RefreshCheckpoint scheduled = checkpoint;
+            executor.schedule(() -> resume(scheduled), resumeDelaySecs, TimeUnit.SECONDS);
+        } else {
+            log.warn("{} of {} queries failed after {} resumes, not updating cache timestamp.",
+                    failed.size(), checkpoint.totalJobs, checkpoint.getResumes());
+            abandonCycle();
+        }
+    }
+
+    /**
+     * @return jobs that did not complete
+     */
+    private List<QueryJob> runQueries(final List<QueryJob> jobs) throws Exception {
+        if (parallelQueriesEnabled) {
+            return QueryProcessor.executeAndProcessQueriesInParallel(connectionString, queryFetchSize, queryHints, jobs,
+                    queryParallelism, retryPolicy);
+        }
+        return QueryProcessor.executeAndProcessQueries(connectionString, queryFetchSize, queryHints, jobs, retryPolicy);
+    }
+
+    /**
+     * Runs all queries once and writes the resulting Redis commands, including the cache timestamp, to the bulk load
+     * file instead of Redis. The file can be piped to redis-cli --pipe or replayed with bulkReplayPath.
+     *
+     * @return whether all queries succeeded
+     */
+    private boolean bulkLoad() {
+        final long startTime = System.currentTimeMillis();
+        final List<AbstractResultSetProcessor> processors = registry.getProcessors();
+        try (RespWriter writer = RespWriter.open(bulkLoadPath)) {
+            redisUtils.respWriter = writer;
+            for (AbstractResultSetProcessor processor : processors) {
+                processor.changeTracker.beginCycle(true);
+            }
+            final List<QueryJob> failed = runQueries(createQueryJobs(processors));
+            if (!failed.isEmpty()) {
+                log.error("{} queries failed, the bulk load file is incomplete", failed.size());
+                return false;
+            }
+            for (AbstractResultSetProcessor processor : processors) {
+                processor.changeTracker.endCycle(processor.getName(), true);
+            }
+            redisUtils.updateTimestamp();
+            log.info("Bulk load file {} written in {} ms", bulkLoadPath, System.currentTimeMillis() - startTime);
+            return true;
+        } catch (Exception e) {
+            log.error("Failed to write the bulk load file", e);
+            return false;
+        } finally {
+            redisUtils.respWriter = null;
+        }
+    }
+
+    private void completeCycle() {
+        final RefreshCheckpoint completed = checkpoint;
+        checkpoint = null;
+        for (AbstractResultSetProcessor processor : completed.processors) {
+            processor.changeTracker.endCycle(processor.getName(), completed.completeWindow);
+        }
+        if (completed.completeWindow) {
+            registry.markRefreshed(completed.processors, completed.startTime);
+        } else if (completed.nearTermSchedule != null) {
+            registry.markRefreshed(completed.nearTermSchedule, completed.startTime);
+        }
+
+        BootstrapperMetrics.recordCycle(System.currentTimeMillis() - completed.startTime, true);
+        completed.stats.finish(completed.totalJobs, true);
+        finishSnapshot(true);
+        redisUtils.updateTimestamp();
+        if (completed.fullRefresh && completed.completeWindow) {
+            lastFullRefreshTime = completed.startTime;
+        }
+
+        lastUpdateTime = System.currentTimeMillis();
+        log.info("All data processed, thank you.");
+        redisUtils.expireRetiredGenerations();
+    }
+
+    /**
+     * Gives up the current cycle without updating the cache timestamp. Keys already written stay in Redis.
+     */
+    private void abandonCycle() {
+        final RefreshCheckpoint abandoned = checkpoint;
+        checkpoint = null;
+        if (abandoned != null) {
+            BootstrapperMetrics.recordCycle(System.currentTimeMillis() - abandoned.startTime, false);
+            if (abandoned.stats != null) {
+                abandoned.stats.finish(abandoned.totalJobs, false);
+            }
         }
-        if (executor != null) {
-            executor.shutdown();
+        finishSnapshot(false);
+        try {
+            redisUtils.abandonGeneration();
+            redisUtils.expireRetiredGenerations();
+        } catch (Exception e) {
+            log.warn("Failed to clean up cache generations", e);
+        }
+    }
+
+    /**
+     * Commits the snapshot being recorded if the refresh succeeded, otherwise discards it
+     */
+    private void finishSnapshot(final boolean success) {
+        final CacheSnapshot.Recorder recorder = redisUtils.snapshotRecorder;
+        if (recorder == null) {
+            return;
+        }
+        redisUtils.snapshotRecorder = null;
+        if (success) {
+            try {
+                recorder.commit();
+            } catch (Exception e) {
+                log.warn("Failed to write cache snapshot", e);
+                recorder.discard();
+            }
+        } else {
+            recorder.discard();
         }
-        log.info("Shutdown completed, bye.");
     }
 
     public static void main(String[] args) {
@@ -159,7 +581,11 @@ public class Main {
             System.exit(1);
         }
         Config config = ConfigParser.createConfig();
-        
+        if (!config.getString("bootstrapper.bulkLoadPath").isEmpty()) {
+            //Bulk load mode only writes a file, so the application doesn't need a Redis connection
+            config = ConfigFactory.parseString("redis.enabled=false").withFallback(config);
+        }
+
         PulsarApplication app = null;
         while (app == null) {
             try {
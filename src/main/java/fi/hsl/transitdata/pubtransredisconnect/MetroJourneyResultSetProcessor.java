@@ -8,13 +8,10 @@ import org.slf4j.LoggerFactory;
 import java.sql.ResultSet;
 import java.text.ParseException;
 import java.time.LocalDate;
-import java.time.LocalTime;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MetroJourneyResultSetProcessor extends AbstractResultSetProcessor {
     private static final Logger log = LoggerFactory.getLogger(MetroJourneyResultSetProcessor.class);
@@ -23,38 +20,103 @@ public class MetroJourneyResultSetProcessor extends AbstractResultSetProcessor {
         super(redisUtils, queryUtils);
     }
 
-    public void processResultSet(final ResultSet resultSet) throws Exception {
+    public MetroJourneyResultSetProcessor(final RedisUtils redisUtils, final QueryUtils queryUtils, final ChangeTracker changeTracker) {
+        super(redisUtils, queryUtils, changeTracker);
+    }
+
+    public void processResultSet(final ResultSet resultSet, final QueryStats stats) throws Exception {
         int rowCounter = 0;
-        int redisCounter = 0;
+        final Output output = new Output();
+
+        final int dvjIdColumn = resultSet.findColumn(queryUtils.DVJ_ID);
+        final int routeNameColumn = resultSet.findColumn(queryUtils.ROUTE_NAME);
+        final int directionColumn = resultSet.findColumn(queryUtils.DIRECTION);
+        final int startTimeColumn = resultSet.findColumn(queryUtils.START_TIME);
+        final int operatingDayColumn = resultSet.findColumn(queryUtils.OPERATING_DAY);
+        final int stopNumberColumn = resultSet.findColumn(queryUtils.STOP_NUMBER);
+
+        try (RedisBatchWriter writer = redisUtils.newBatchWriter(getName())) {
+            while (stats.next(resultSet)) {
+                rowCounter++;
+                final String dvjId = resultSet.getString(dvjIdColumn);
+                final String routeName = resultSet.getString(routeNameColumn);
+                final String direction = resultSet.getString(directionColumn);
+                final String operatingDay = resultSet.getString(operatingDayColumn);
+                final String startTime = resultSet.getString(startTimeColumn);
+                final String stopNumber = resultSet.getString(stopNumberColumn);
+                if (output.write(writer, dvjId, routeName, direction, startTime, operatingDay, stopNumber)) {
+                    writer.endRow();
+                }
+            }
+        }
+
+        output.logSummary(rowCounter);
+    }
+
+    /**
+     * Writes the metro keys of journeys and counts the keys written. Used for one result set at a time.
+     */
+    class Output {
+        private final AtomicInteger redisCounter = new AtomicInteger(0);
+        private final StartDateTimeFormatter dateTimeFormatter = new StartDateTimeFormatter();
 
-        while (resultSet.next()) {
-            rowCounter++;
-            final String operatingDay = resultSet.getString(queryUtils.OPERATING_DAY);
-            final String startTime = resultSet.getString(queryUtils.START_TIME);
-            final String dateTime = processDateTime(operatingDay, startTime);
-            final String stopNumber = resultSet.getString(queryUtils.STOP_NUMBER);
+        /**
+         * @return false if the journey is unchanged and nothing was written
+         */
+        boolean write(final RedisBatchWriter writer, final String dvjId, final String routeName, final String direction,
+                      final String startTime, final String operatingDay, final String stopNumber) throws ParseException {
+            final String dateTime = dateTimeFormatter.format(operatingDay, startTime);
+            final String metroKey = TransitdataProperties.formatMetroId(stopNumber, dateTime);
+            final int fingerprint = ChangeTracker.fingerprint(dvjId, routeName, direction);
+            if (!changeTracker.hasChanged(metroKey, fingerprint)) {
+                return false;
+            }
 
-            Map<String, String> values = new HashMap<>();
+            //The map is kept in the pipeline buffer until the batch is flushed, so it can't be reused
+            final Map<String, String> values = new HashMap<>(16);
             // remove fields that can be queried from MQTT
-            values.put(TransitdataProperties.KEY_DVJ_ID, resultSet.getString(queryUtils.DVJ_ID));
-            values.put(TransitdataProperties.KEY_ROUTE_NAME, resultSet.getString(queryUtils.ROUTE_NAME));
-            values.put(TransitdataProperties.KEY_DIRECTION, resultSet.getString(queryUtils.DIRECTION));
+            values.put(TransitdataProperties.KEY_DVJ_ID, dvjId);
+            values.put(TransitdataProperties.KEY_ROUTE_NAME, routeName);
+            values.put(TransitdataProperties.KEY_DIRECTION, direction);
             values.put(TransitdataProperties.KEY_START_TIME, startTime);
             values.put(TransitdataProperties.KEY_OPERATING_DAY, operatingDay);
             values.put(TransitdataProperties.KEY_START_DATETIME, dateTime);
             values.put(TransitdataProperties.KEY_START_STOP_NUMBER, stopNumber);
 
-            String metroKey = TransitdataProperties.formatMetroId(stopNumber, dateTime);
-            String response = redisUtils.setValues(metroKey, values);
-            if (redisUtils.checkResponse(response)) {
-                redisUtils.setExpire(metroKey);
-                redisCounter++;
-            } else {
-                log.error("Failed to set metro key {}, Redis returned {}", metroKey, response);
-            }
+            writer.setValuesWithExpire(metroKey, values, response -> {
+                if (redisUtils.checkResponse(response)) {
+                    changeTracker.markWritten(metroKey, fingerprint);
+                    redisCounter.incrementAndGet();
+                } else {
+                    log.error("Failed to set metro key {}, Redis returned {}", metroKey, response);
+                }
+            });
+            return true;
         }
 
-        log.info("Inserted {} redis metro id keys for {} DB rows", redisCounter, rowCounter);
+        void logSummary(final int rowCounter) {
+            log.info("Inserted {} redis metro id keys for {} DB rows", redisCounter.get(), rowCounter);
+        }
+    }
+
+    @Override
+    public boolean isShardable() {
+        return true;
+    }
+
+    @Override
+    public String getChangeIndicatorQuery() {
+        return queryUtils.getJourneyChangeIndicatorQuery();
+    }
+
+    @Override
+    public Object[] getChangeIndicatorParameters() {
+        return queryUtils.getJourneyChangeIndicatorParameters();
+    }
+
+    @Override
+    protected Object[] getQueryParameters(final QueryUtils.DateRange range) {
+        return range.toQueryParameters();
     }
 
     protected String getQuery() {
@@ -84,21 +146,58 @@ public class MetroJourneyResultSetProcessor extends AbstractResultSetProcessor {
                 .append("   ) ")
                 .append("   AND OT.Name = 'VehicleJourney' ")
                 .append("   AND VJT.IsWorkedOnDirectionOfLineGid IS NOT NULL ")
-                .append("   AND DVJ.OperatingDayDate >= '" + queryUtils.from + "' ")
-                .append("   AND DVJ.OperatingDayDate < '" + queryUtils.to + "' ")
+                .append("   AND DVJ.OperatingDayDate >= ? ")
+                .append("   AND DVJ.OperatingDayDate < ? ")
                 .append("   AND DVJ.IsReplacedById IS NULL ")
                 .append("   AND VJT.TransportModeCode = 'METRO' ")
                 .toString();
         return query;
     }
 
-    private static String processDateTime(final String operatingDay, final String startTime) throws ParseException {
-        LocalDate date = LocalDate.parse(operatingDay, DateTimeFormatter.BASIC_ISO_DATE);
-        ZonedDateTime dateTime = ZonedDateTime.of(date, LocalTime.MIN, ZoneOffset.UTC);
-        dateTime = dateTime.plus(JoreDateTime.timeStringToSeconds(startTime), ChronoUnit.SECONDS);
+    /**
+     * Formats the start datetime of a journey as an ISO-8601 instant, treating the operating day as a UTC date
+     * and the start time as an offset from its midnight (which can be over 24 hours).
+     * The formatted date part is cached per day, as a result set only covers a limited range of days.
+     */
+    static class StartDateTimeFormatter {
+        private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+        private final Map<String, Long> operatingDayEpochDays = new HashMap<>();
+        private final Map<Long, String> datePrefixes = new HashMap<>();
+        private final StringBuilder builder = new StringBuilder(20);
 
-        String dateTimeString = DateTimeFormatter.ISO_INSTANT.format(dateTime);
+        String format(final String operatingDay, final String startTime) throws ParseException {
+            Long epochDay = operatingDayEpochDays.get(operatingDay);
+            if (epochDay == null) {
+                epochDay = LocalDate.parse(operatingDay, DateTimeFormatter.BASIC_ISO_DATE).toEpochDay();
+                operatingDayEpochDays.put(operatingDay, epochDay);
+            }
+            final long startSeconds = JoreDateTime.timeStringToSeconds(startTime);
+            final long day = epochDay + Math.floorDiv(startSeconds, SECONDS_PER_DAY);
+            final long secondOfDay = Math.floorMod(startSeconds, SECONDS_PER_DAY);
+
+            String prefix = datePrefixes.get(day);
+            if (prefix == null) {
+                prefix = DateTimeFormatter.ISO_LOCAL_DATE.format(LocalDate.ofEpochDay(day)) + "T";
+                datePrefixes.put(day, prefix);
+            }
 
-        return dateTimeString;
+            builder.setLength(0);
+            builder.append(prefix);
+            appendTwoDigits(secondOfDay / 3600);
+            builder.append(':');
+            appendTwoDigits((secondOfDay / 60) % 60);
+            builder.append(':');
+            appendTwoDigits(secondOfDay % 60);
+            builder.append('Z');
+            return builder.toString();
+        }
+
+        private void appendTwoDigits(final long value) {
+            if (value < 10) {
+                builder.append('0');
+            }
+            builder.append(value);
+        }
     }
 }
@@ -0,0 +1,102 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the processors of a refresh and their query jobs as configured
+ */
+final class ProcessorFactory {
+    private static final Logger log = LoggerFactory.getLogger(ProcessorFactory.class);
+
+    private ProcessorFactory() {}
+
+    /**
+     * Creates the processors and registers them with their refresh intervals and priorities: journeys, stops and
+     * metro journeys unless they are read with the journeys.
+     */
+    static ProcessorRegistry createRegistry(final Config config, final RedisUtils redisUtils, final QueryUtils queryUtils,
+                                            final long pollPeriodMillis, final boolean incrementalRefreshEnabled,
+                                            final boolean differentialStopsEnabled) {
+        //Journeys and metro journeys can be read with a single query, then the journey schedule is used for both
+        final boolean combinedJourneysEnabled = config.getBoolean("bootstrapper.combinedJourneyQueryEnabled");
+        if (combinedJourneysEnabled) {
+            log.info("Reading journeys and metro journeys with a single query.");
+        }
+        final AbstractResultSetProcessor journeys = combinedJourneysEnabled
+                ? new CombinedJourneyResultSetProcessor(redisUtils, queryUtils, new ChangeTracker(incrementalRefreshEnabled))
+                : new JourneyResultSetProcessor(redisUtils, queryUtils, new ChangeTracker(incrementalRefreshEnabled));
+        final AbstractResultSetProcessor stops =
+                new StopResultSetProcessor(redisUtils, queryUtils, new ChangeTracker(incrementalRefreshEnabled && !differentialStopsEnabled),
+                        differentialStopsEnabled);
+        final AbstractResultSetProcessor metroJourneys =
+                new MetroJourneyResultSetProcessor(redisUtils, queryUtils, new ChangeTracker(incrementalRefreshEnabled));
+
+        final ProcessorRegistry registry = new ProcessorRegistry(pollPeriodMillis,
+                TimeUnit.MINUTES.toMillis(config.getInt("bootstrapper.queryMinutesFromEvenHour")));
+        if (redisUtils.generationsEnabled) {
+            //Every generation must contain the keys of all processors
+            registry.register(journeys, 60, 0);
+            registry.register(stops, 60, 1);
+            if (!combinedJourneysEnabled) {
+                registry.register(metroJourneys, 60, 2);
+            }
+        } else {
+            registry.register(journeys, config.getInt("bootstrapper.journeyRefreshIntervalMinutes"), 0);
+            registry.register(stops, config.getInt("bootstrapper.stopRefreshIntervalMinutes"), 1);
+            if (!combinedJourneysEnabled) {
+                registry.register(metroJourneys, config.getInt("bootstrapper.metroJourneyRefreshIntervalMinutes"), 2);
+            }
+            final int nearTermIntervalMinutes = config.getInt("bootstrapper.nearTermRefreshIntervalMinutes");
+            if (nearTermIntervalMinutes > 0) {
+                final int nearTermDays = config.getInt("bootstrapper.nearTermRefreshDays");
+                registry.registerNearTerm(journeys, nearTermIntervalMinutes, nearTermDays, 0);
+                if (!combinedJourneysEnabled) {
+                    registry.registerNearTerm(metroJourneys, nearTermIntervalMinutes, nearTermDays, 2);
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * @param shardSizeInDays 0 to query the whole window of shardable processors at once
+     * @return queries of the whole window, the most urgent ones first, then by the priority of the processor
+     */
+    static List<QueryJob> createQueryJobs(final ProcessorRegistry registry, final List<AbstractResultSetProcessor> processors,
+                                          final QueryUtils queryUtils, final int shardSizeInDays) {
+        final List<QueryJob> jobs = new ArrayList<>();
+        final List<QueryUtils.DateRange> shards = queryUtils.getDateShards(shardSizeInDays);
+        for (AbstractResultSetProcessor processor : processors) {
+            if (processor.isShardable() && shardSizeInDays > 0) {
+                for (QueryUtils.DateRange shard : shards) {
+                    jobs.add(new QueryJob(processor, shard));
+                }
+            } else {
+                jobs.add(new QueryJob(processor));
+            }
+        }
+        jobs.sort(Comparator.comparingLong(QueryJob::getUrgency)
+                .thenComparingInt(job -> registry.getPriority(job.processor)));
+        return jobs;
+    }
+
+    /**
+     * @return queries of the near-term range of shardable processors and the whole data of the others
+     */
+    static List<QueryJob> createNearTermQueryJobs(final List<AbstractResultSetProcessor> processors, final QueryUtils queryUtils,
+                                                  final int days) {
+        final List<QueryJob> jobs = new ArrayList<>();
+        final QueryUtils.DateRange range = queryUtils.getNearTermRange(days);
+        for (AbstractResultSetProcessor processor : processors) {
+            jobs.add(processor.isShardable() ? new QueryJob(processor, range) : new QueryJob(processor));
+        }
+        return jobs;
+    }
+}
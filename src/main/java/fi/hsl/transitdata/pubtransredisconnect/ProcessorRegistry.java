@@ -0,0 +1,155 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The processors of the bootstrapper and the schedules they are refreshed on. A processor can have a schedule for its
+ * whole query window, run by the hourly poll when due, and schedules for the days around the current day, run on
+ * their own interval.
+ *
+ * Whole-window schedules are due by hourly poll slots rather than by the time of their last refresh, so that f.ex. a
+ * refresh at startup or after a detected change doesn't make the next hourly poll skip an hourly schedule.
+ */
+public class ProcessorRegistry {
+    /** Schedules that are a bit early are still run, so that an hourly schedule isn't skipped by the hourly poll */
+    private static final long DUE_TOLERANCE_MILLIS = 5 * 60 * 1000;
+
+    private final List<Schedule> schedules = new ArrayList<>();
+    private final long pollPeriodMillis;
+    /** Offset of the poll times from the start of the period, f.ex. minutes from the even hour */
+    private final long pollOffsetMillis;
+
+    public ProcessorRegistry(final long pollPeriodMillis, final long pollOffsetMillis) {
+        this.pollPeriodMillis = pollPeriodMillis;
+        this.pollOffsetMillis = pollOffsetMillis;
+    }
+
+    public static class Schedule {
+        public final AbstractResultSetProcessor processor;
+        public final long intervalMillis;
+        /** Number of days before and after the current day to refresh, 0 for the whole query window */
+        public final int nearTermDays;
+        /** Jobs of the same urgency are run in the order of priority, lowest first */
+        public final int priority;
+
+        private volatile long lastRefreshTime = 0;
+
+        Schedule(final AbstractResultSetProcessor processor, final long intervalMillis, final int nearTermDays, final int priority) {
+            this.processor = processor;
+            this.intervalMillis = intervalMillis;
+            this.nearTermDays = nearTermDays;
+            this.priority = priority;
+        }
+
+        public boolean isNearTerm() {
+            return nearTermDays > 0;
+        }
+
+        public boolean isDue(final long now) {
+            return now - lastRefreshTime + DUE_TOLERANCE_MILLIS >= intervalMillis;
+        }
+
+        /**
+         * @return whether at least the interval worth of poll slots have started since the last refresh
+         */
+        boolean isDueOnPoll(final long now, final long pollPeriodMillis, final long pollOffsetMillis) {
+            final long slotsPerInterval = Math.max(1, (intervalMillis + pollPeriodMillis - 1) / pollPeriodMillis);
+            //A poll that fires a bit early still belongs to its own slot
+            final long slot = Math.floorDiv(now + DUE_TOLERANCE_MILLIS - pollOffsetMillis, pollPeriodMillis);
+            final long lastRefreshSlot = Math.floorDiv(lastRefreshTime - pollOffsetMillis, pollPeriodMillis);
+            return lastRefreshTime == 0 || slot - lastRefreshSlot >= slotsPerInterval;
+        }
+
+        @Override
+        public String toString() {
+            return processor.getName() + (isNearTerm() ? " +-" + nearTermDays + " days" : "")
+                    + " every " + intervalMillis / 60000 + " min";
+        }
+    }
+
+    /**
+     * Refreshes the whole query window of the processor every intervalMinutes
+     */
+    public Schedule register(final AbstractResultSetProcessor processor, final int intervalMinutes, final int priority) {
+        final Schedule schedule = new Schedule(processor, intervalMinutes * 60000L, 0, priority);
+        schedules.add(schedule);
+        return schedule;
+    }
+
+    /**
+     * Refreshes the given number of days around the current day every intervalMinutes, in addition to the schedule
+     * of the whole window. The processor must be shardable.
+     */
+    public Schedule registerNearTerm(final AbstractResultSetProcessor processor, final int intervalMinutes,
+                                     final int nearTermDays, final int priority) {
+        if (!processor.isShardable()) {
+            throw new IllegalArgumentException(processor.getName() + " can't be limited to near-term days");
+        }
+        final Schedule schedule = new Schedule(processor, intervalMinutes * 60000L, Math.max(1, nearTermDays), priority);
+        schedules.add(schedule);
+        return schedule;
+    }
+
+    /**
+     * @return all processors in the order they were registered
+     */
+    public List<AbstractResultSetProcessor> getProcessors() {
+        final Set<AbstractResultSetProcessor> processors = new LinkedHashSet<>();
+        for (Schedule schedule : schedules) {
+            processors.add(schedule.processor);
+        }
+        return new ArrayList<>(processors);
+    }
+
+    public List<Schedule> getNearTermSchedules() {
+        final List<Schedule> nearTerm = new ArrayList<>();
+        for (Schedule schedule : schedules) {
+            if (schedule.isNearTerm()) {
+                nearTerm.add(schedule);
+            }
+        }
+        return nearTerm;
+    }
+
+    /**
+     * @return processors whose whole window is due to be refreshed
+     */
+    public List<AbstractResultSetProcessor> getDueProcessors(final long now) {
+        final Set<AbstractResultSetProcessor> due = new LinkedHashSet<>();
+        for (Schedule schedule : schedules) {
+            if (!schedule.isNearTerm() && schedule.isDueOnPoll(now, pollPeriodMillis, pollOffsetMillis)) {
+                due.add(schedule.processor);
+            }
+        }
+        return new ArrayList<>(due);
+    }
+
+    public int getPriority(final AbstractResultSetProcessor processor) {
+        int priority = Integer.MAX_VALUE;
+        for (Schedule schedule : schedules) {
+            if (schedule.processor == processor) {
+                priority = Math.min(priority, schedule.priority);
+            }
+        }
+        return priority;
+    }
+
+    /**
+     * Records a completed refresh of the whole window of the processors, which also covers their near-term days
+     */
+    public void markRefreshed(final Collection<AbstractResultSetProcessor> processors, final long refreshTime) {
+        for (Schedule schedule : schedules) {
+            if (processors.contains(schedule.processor)) {
+                schedule.lastRefreshTime = refreshTime;
+            }
+        }
+    }
+
+    public void markRefreshed(final Schedule schedule, final long refreshTime) {
+        schedule.lastRefreshTime = refreshTime;
+    }
+}
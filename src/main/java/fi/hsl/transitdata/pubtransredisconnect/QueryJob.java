@@ -0,0 +1,36 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+/**
+ * A single query to execute: a processor, optionally limited to a range of operating days.
+ */
+public class QueryJob {
+    public final AbstractResultSetProcessor processor;
+    public final QueryUtils.DateRange range;
+
+    public QueryJob(final AbstractResultSetProcessor processor) {
+        this(processor, null);
+    }
+
+    public QueryJob(final AbstractResultSetProcessor processor, final QueryUtils.DateRange range) {
+        this.processor = processor;
+        this.range = range;
+    }
+
+    public String getQuery() {
+        return processor.getQuery();
+    }
+
+    public Object[] getQueryParameters() {
+        return processor.getQueryParameters(range == null ? processor.queryUtils.getWindow() : range);
+    }
+
+    public long getUrgency() {
+        return range == null ? 0 : range.urgency;
+    }
+
+    @Override
+    public String toString() {
+        final String processorName = processor.getClass().getName();
+        return range == null ? processorName : processorName + " (" + range + ")";
+    }
+}
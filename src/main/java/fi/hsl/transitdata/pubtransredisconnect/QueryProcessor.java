@@ -1,72 +1,269 @@
 package fi.hsl.transitdata.pubtransredisconnect;
 
+import com.microsoft.sqlserver.jdbc.ISQLServerStatement;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class QueryProcessor {
+/**
+ * Executes queries as prepared statements with bound parameters, so that SQL Server can reuse the query plans.
+ * Statements are cached per connection and reused by later queries with the same SQL until the connection is closed.
+ *
+ * The refresh queries of a cycle run on processors created for that cycle, so their statements are prepared again in
+ * every cycle. The query plans are cached by the server for the parameterized SQL, which is the same in every cycle,
+ * so the plans are still reused. Long-lived processors, such as the one of the change detection, also reuse the
+ * statements.
+ */
+public class QueryProcessor implements AutoCloseable {
 
     private static final Logger log = LoggerFactory.getLogger(QueryProcessor.class);
 
+    private static final String RESPONSE_BUFFERING_ADAPTIVE = "adaptive";
+
+    /** Used to reconnect after connection failures */
+    private final String connectionString;
     public Connection connection;
+    public int fetchSize;
+    /** Query hints appended to every query in an OPTION clause, empty for none */
+    public String queryHints;
+
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
 
-    public QueryProcessor(final Connection connection) {
-        this.connection = connection;
+    /**
+     * Opens the connection when the first query is executed and reopens it after failures
+     *
+     * @param fetchSize number of rows the driver should fetch per round-trip, 0 to use the driver default
+     * @param queryHints f.ex. "MAXDOP 2, OPTIMIZE FOR UNKNOWN", empty for none
+     */
+    public QueryProcessor(final String connectionString, final int fetchSize, final String queryHints) {
+        this.connectionString = connectionString;
+        this.fetchSize = fetchSize;
+        this.queryHints = queryHints;
     }
 
-    public void executeAndProcessQuery(final AbstractResultSetProcessor processor) {
-        final String processorName = processor.getClass().getName();
+    /**
+     * Executes the query of the job and processes the whole result set
+     *
+     * @throws Exception if the query or writing the results to Redis fails
+     */
+    public void runQuery(final QueryJob job) throws Exception {
+        final String processorName = job.toString();
         long now = System.currentTimeMillis();
         log.info("Starting query with result set processor {}. {}", processorName, now);
 
+        boolean success = false;
+        final QueryStats stats = new QueryStats();
         ResultSet resultSet = null;
         try {
-            final String query = processor.getQuery();
             log.info("Executing query... {}", now);
-            resultSet = executeQuery(query);
+            resultSet = executeQuery(job.getQuery(), job.getQueryParameters());
+            stats.queryExecuted();
             log.info("Processing result set... {}", now);
-            processor.processResultSet(resultSet);
+            job.processor.processResultSet(resultSet, stats);
             log.info("Query processed. {}", now);
-        } catch (JedisConnectionException e) {
-            log.error(String.format("Failed to connect to Redis while running processor %s.", processorName), e);
-            throw e;
-        } catch (Exception e) {
-            log.error("Failed to process query", e);
+            success = true;
         } finally {
             closeQuery(resultSet, now);
+            BootstrapperMetrics.recordQuery(job.processor.getName(), stats, success);
         }
 
         long elapsed = (System.currentTimeMillis() - now) / 1000;
         log.info("Data handled in " + elapsed + " seconds");
     }
 
-    private ResultSet executeQuery(final String query) throws SQLException {
-        Statement statement = connection.createStatement();
-        ResultSet resultSet = statement.executeQuery(query);
-        return resultSet;
+    /**
+     * Runs the job, retrying it from the beginning with a new connection after transient database or Redis failures.
+     * Redis writes are idempotent, so the rows of a failed attempt are simply written again.
+     *
+     * @return true if the job succeeded
+     */
+    public boolean executeWithRetries(final QueryJob job, final RetryPolicy retryPolicy) {
+        final AtomicInteger attempts = new AtomicInteger(0);
+        try {
+            retryPolicy.call(job.toString(), () -> {
+                if (attempts.incrementAndGet() > 1) {
+                    BootstrapperMetrics.recordRetry(job.processor.getName());
+                    closeConnection();
+                }
+                runQuery(job);
+                return null;
+            });
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while running {}", job);
+        } catch (SQLException e) {
+            log.error(String.format("Query of %s failed after %d attempts, Driver Error code: %d and SQL State: %s",
+                    job, attempts.get(), e.getErrorCode(), e.getSQLState()), e);
+        } catch (Exception e) {
+            log.error(String.format("Processor %s failed after %d attempts", job, attempts.get()), e);
+        }
+        //The connection may be unusable after the failure
+        closeConnection();
+        return false;
     }
 
-    private static void closeQuery(final ResultSet resultSet, long now) {
-        Statement statement = null;
-        try { statement = resultSet.getStatement(); } catch (Exception e) {
-            log.error("Failed to get Statement", e);
+    /**
+     * Runs the jobs one at a time in the given order with one connection.
+     *
+     * @return the jobs that failed
+     */
+    public static List<QueryJob> executeAndProcessQueries(final String connectionString, final int fetchSize, final String queryHints,
+                                                          final List<QueryJob> jobs, final RetryPolicy retryPolicy) {
+        final List<QueryJob> failed = new ArrayList<>();
+        try (QueryProcessor queryProcessor = new QueryProcessor(connectionString, fetchSize, queryHints)) {
+            for (QueryJob job : jobs) {
+                if (!queryProcessor.executeWithRetries(job, retryPolicy)) {
+                    failed.add(job);
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Runs the jobs on worker threads, at most maxConcurrency at a time. Each worker uses its own connection.
+     * Jobs are started in the given order.
+     *
+     * @return the jobs that failed
+     */
+    public static List<QueryJob> executeAndProcessQueriesInParallel(final String connectionString, final int fetchSize,
+                                                                    final String queryHints, final List<QueryJob> jobs,
+                                                                    final int maxConcurrency, final RetryPolicy retryPolicy) throws InterruptedException {
+        final int threads = Math.max(1, Math.min(maxConcurrency, jobs.size()));
+        log.info("Running {} queries in parallel with {} threads", jobs.size(), threads);
+        final BlockingQueue<QueryProcessor> queryProcessors = new ArrayBlockingQueue<>(threads);
+        for (int i = 0; i < threads; i++) {
+            queryProcessors.add(new QueryProcessor(connectionString, fetchSize, queryHints));
+        }
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (QueryJob job : jobs) {
+                results.add(workers.submit(() -> {
+                    final QueryProcessor queryProcessor = queryProcessors.take();
+                    try {
+                        return queryProcessor.executeWithRetries(job, retryPolicy);
+                    } finally {
+                        queryProcessors.add(queryProcessor);
+                    }
+                }));
+            }
+
+            final List<QueryJob> failed = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++) {
+                try {
+                    if (!results.get(i).get()) {
+                        failed.add(jobs.get(i));
+                    }
+                } catch (ExecutionException e) {
+                    log.error("Unexpected failure in " + jobs.get(i), e.getCause());
+                    failed.add(jobs.get(i));
+                }
+            }
+            return failed;
+        } finally {
+            workers.shutdownNow();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+            for (QueryProcessor queryProcessor : queryProcessors) {
+                queryProcessor.close();
+            }
+        }
+    }
+
+    /**
+     * Executes the query as a forward-only, read-only cursor with adaptive response buffering, so that the driver
+     * streams rows from the server while the result set is being processed instead of buffering it on the heap.
+     * The statement is cached, so the caller must only close the result set.
+     */
+    public ResultSet executeQuery(final String query, final Object[] parameters) throws SQLException {
+        final PreparedStatement statement = prepare(query);
+        statement.clearParameters();
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+        return statement.executeQuery();
+    }
+
+    private PreparedStatement prepare(final String query) throws SQLException {
+        PreparedStatement statement = statements.get(query);
+        if (statement != null) {
+            return statement;
+        }
+        final String sql = queryHints.isEmpty() ? query : query + " OPTION (" + queryHints + ")";
+        statement = getConnection().prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            if (statement.isWrapperFor(ISQLServerStatement.class)) {
+                statement.unwrap(ISQLServerStatement.class).setResponseBuffering(RESPONSE_BUFFERING_ADAPTIVE);
+            }
+            if (fetchSize > 0) {
+                statement.setFetchSize(fetchSize);
+            }
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+        statements.put(query, statement);
+        return statement;
+    }
+
+    private Connection getConnection() throws SQLException {
+        if (connection == null) {
+            connection = DriverManager.getConnection(connectionString);
+        }
+        return connection;
+    }
+
+    /**
+     * Closes the cached statements and the connection
+     */
+    private void closeConnection() {
+        for (PreparedStatement statement : statements.values()) {
+            try {
+                statement.close();
+            } catch (Exception e) {
+                log.debug("Failed to close statement", e);
+            }
+        }
+        statements.clear();
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                log.debug("Failed to close connection", e);
+            }
+            connection = null;
         }
+    }
+
+    @Override
+    public void close() {
+        closeConnection();
+    }
+
+    private static void closeQuery(final ResultSet resultSet, long now) {
         if (resultSet != null)  try {
             resultSet.close();
             log.info("ResultSet closed. {}", now);
         } catch (Exception e) {
             log.error("Failed to close ResultSet", e);
         }
-        if (statement != null)  try {
-            statement.close();
-            log.info("Statement closed. {}", now);
-        } catch (Exception e) {
-            log.error("Failed to close Statement", e);
-        }
     }
 }
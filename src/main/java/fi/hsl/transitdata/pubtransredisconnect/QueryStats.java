@@ -0,0 +1,55 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Timings and row count of a single query execution.
+ */
+public class QueryStats {
+    private final long startTime = System.nanoTime();
+    private long executedTime = 0;
+    private long firstRowTime = 0;
+    private long rows = 0;
+
+    public void queryExecuted() {
+        executedTime = System.nanoTime();
+    }
+
+    /**
+     * Advances the result set and records the row.
+     */
+    public boolean next(final ResultSet resultSet) throws SQLException {
+        final boolean hasRow = resultSet.next();
+        if (hasRow) {
+            if (rows == 0) {
+                firstRowTime = System.nanoTime();
+            }
+            rows++;
+        }
+        return hasRow;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public double getExecutionSeconds() {
+        return executedTime == 0 ? 0 : (executedTime - startTime) / 1e9;
+    }
+
+    public double getFirstRowSeconds() {
+        return firstRowTime == 0 ? 0 : (firstRowTime - startTime) / 1e9;
+    }
+
+    /**
+     * @return rows per second since the query was executed
+     */
+    public double getRowRate() {
+        if (executedTime == 0) {
+            return 0;
+        }
+        final double elapsed = (System.nanoTime() - executedTime) / 1e9;
+        return elapsed > 0 ? rows / elapsed : 0;
+    }
+}
@@ -3,11 +3,16 @@ package fi.hsl.transitdata.pubtransredisconnect;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.Date;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 public class QueryUtils {
 
@@ -19,6 +24,7 @@ public class QueryUtils {
     public final String START_TIME = "start_time";
     public final String OPERATING_DAY = "operating_day";
     public final String STOP_NUMBER = "stop_number";
+    public final String TRANSPORT_MODE = "transport_mode";
 
     private int queryHistoryInDays;
     private int queryFutureInDays;
@@ -27,6 +33,10 @@ public class QueryUtils {
     public String from;
     public String to;
 
+    private LocalDate fromDate;
+    private LocalDate toDate;
+    private LocalDate today;
+
     public QueryUtils(int queryHistoryInDays, int queryFutureInDays, int queryMinutesFromEvenHour) {
         this.queryHistoryInDays = queryHistoryInDays;
         this.queryFutureInDays = queryFutureInDays;
@@ -35,11 +45,91 @@ public class QueryUtils {
     }
 
     public void updateFromToDates() {
+        this.today = LocalDate.now();
+        this.fromDate = today.minusDays(queryHistoryInDays);
+        this.toDate = today.plusDays(queryFutureInDays);
         this.from = formatDate(-queryHistoryInDays);
         this.to = formatDate(queryFutureInDays);
         log.info("Fetching data from {} to {}", this.from, this.to);
     }
 
+    /**
+     * Splits the [from, to) window into ranges of at most shardSizeInDays days. Ranges are aligned to start from
+     * the current day and ordered by urgency: the range containing today first, followed by the others by their
+     * distance from today, future ranges before past ones.
+     */
+    public List<DateRange> getDateShards(int shardSizeInDays) {
+        final LocalDate shardFrom = fromDate;
+        final LocalDate shardTo = toDate;
+        final LocalDate shardToday = today;
+        if (shardSizeInDays <= 0 || !shardFrom.isBefore(shardTo)) {
+            return Collections.singletonList(new DateRange(shardFrom, shardTo, 0));
+        }
+
+        final List<DateRange> shards = new ArrayList<>();
+        LocalDate start = shardToday;
+        while (start.isBefore(shardTo)) {
+            final LocalDate end = min(start.plusDays(shardSizeInDays), shardTo);
+            shards.add(new DateRange(max(start, shardFrom), end, ChronoUnit.DAYS.between(shardToday, start) * 2));
+            start = end;
+        }
+        LocalDate end = min(shardToday, shardTo);
+        while (end.isAfter(shardFrom)) {
+            final LocalDate rangeStart = max(end.minusDays(shardSizeInDays), shardFrom);
+            shards.add(new DateRange(rangeStart, end, ChronoUnit.DAYS.between(end, shardToday) * 2 + 1));
+            end = rangeStart;
+        }
+        shards.sort(Comparator.comparingLong(range -> range.urgency));
+        return shards;
+    }
+
+    /**
+     * @return the whole [from, to) window
+     */
+    public DateRange getWindow() {
+        return new DateRange(from, to, 0);
+    }
+
+    /**
+     * @return range covering the current operating day and the given number of days before and after it,
+     * limited to the [from, to) window
+     */
+    public DateRange getNearTermRange(int days) {
+        final LocalDate rangeFrom = max(today.minusDays(days), fromDate);
+        final LocalDate rangeTo = min(today.plusDays(days + 1), toDate);
+        return new DateRange(rangeFrom, max(rangeFrom, rangeTo), 0);
+    }
+
+    /**
+     * @return query summarizing the dated vehicle journeys of a range of operating days, which changes when journeys
+     * are added, replaced or moved to another journey or template. The range is bound to
+     * {@link #getJourneyChangeIndicatorParameters()}.
+     */
+    public String getJourneyChangeIndicatorQuery() {
+        return new StringBuilder()
+                .append("SELECT COUNT_BIG(*), MAX(DVJ.Id), ")
+                .append("   CHECKSUM_AGG(CHECKSUM(DVJ.Id, DVJ.IsReplacedById, DVJ.IsBasedOnVehicleJourneyId, DVJ.IsBasedOnVehicleJourneyTemplateId)) ")
+                .append("FROM ptDOI4_Community.dbo.DatedVehicleJourney AS DVJ ")
+                .append("WHERE DVJ.OperatingDayDate >= ? ")
+                .append("   AND DVJ.OperatingDayDate < ? ")
+                .toString();
+    }
+
+    /**
+     * @return the [from, to) window as the parameters of {@link #getJourneyChangeIndicatorQuery()}
+     */
+    public Object[] getJourneyChangeIndicatorParameters() {
+        return getWindow().toQueryParameters();
+    }
+
+    private static LocalDate min(LocalDate a, LocalDate b) {
+        return a.isBefore(b) ? a : b;
+    }
+
+    private static LocalDate max(LocalDate a, LocalDate b) {
+        return a.isAfter(b) ? a : b;
+    }
+
     private static String formatDate(int offsetInDays) {
         LocalDate now = LocalDate.now();
         LocalDate then = now.plus(offsetInDays, ChronoUnit.DAYS);
@@ -66,4 +156,36 @@ public class QueryUtils {
         log.debug("Current time is " + now.toString() + ", next time is at " + nextTime.toString());
         return Duration.between(now, nextTime).getSeconds();
     }
+
+    /**
+     * Half-open range of operating days [from, to) formatted for use in queries.
+     */
+    public static class DateRange {
+        public final String from;
+        public final String to;
+        /** Smaller is more urgent */
+        public final long urgency;
+
+        public DateRange(LocalDate from, LocalDate to, long urgency) {
+            this(DateTimeFormatter.ISO_LOCAL_DATE.format(from), DateTimeFormatter.ISO_LOCAL_DATE.format(to), urgency);
+        }
+
+        public DateRange(String from, String to, long urgency) {
+            this.from = from;
+            this.to = to;
+            this.urgency = urgency;
+        }
+
+        /**
+         * @return the first and the first excluded operating day as query parameters
+         */
+        public Object[] toQueryParameters() {
+            return new Object[] { Date.valueOf(from), Date.valueOf(to) };
+        }
+
+        @Override
+        public String toString() {
+            return from + " - " + to;
+        }
+    }
 }
@@ -0,0 +1,581 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Buffers Redis write commands and sends them in batches using a Jedis {@link Pipeline}.
+ * Replies are handed to the given callbacks once the batch has been flushed.
+ *
+ * If script writes are enabled, values and their TTLs are instead written with the write script of
+ * {@link RedisUtils}, many rows per script call.
+ *
+ * If RedisUtils has a writer pool, full batches are handed to it and written in the background while the
+ * caller keeps producing rows. The number of batches in flight is bounded, so the caller blocks when the
+ * writers fall behind. Callbacks are then invoked on the writer threads. If a background write fails, the failure
+ * is rethrown to the caller by the next flush or by close, and no further batches are sent.
+ *
+ * If RedisUtils has a {@link WriteThrottle}, each batch waits for its turn at the throttled rate before it is sent.
+ *
+ * If RedisUtils has a {@link RespWriter}, commands are written to it instead of Redis and callbacks are invoked
+ * immediately with a successful reply.
+ */
+public class RedisBatchWriter implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RedisBatchWriter.class);
+
+    private final RedisUtils redisUtils;
+    private final String name;
+    private final int redisTTLInSeconds;
+    private final int batchSize;
+    private final String keyPrefix;
+    private final boolean scriptWrites;
+    private final int scriptRowsPerCall;
+    private final CacheSnapshot.Recorder snapshotRecorder;
+    private final KeyBuckets.Layout keyLayout;
+    private final RespWriter respWriter;
+    /** Buckets whose TTL has already been set by this writer */
+    private final Set<String> expiredBuckets = new HashSet<>();
+
+    private List<QueuedCommand<?>> commands = new ArrayList<>();
+    private int rowsInBatch = 0;
+
+    private final List<Future<?>> pendingWrites = new ArrayList<>();
+    /** First exception thrown by a background write */
+    private RuntimeException writeFailure;
+    private boolean writeFailureThrown = false;
+
+    private List<String> scriptKeys = new ArrayList<>();
+    private List<String> scriptArgs = new ArrayList<>();
+    private List<Consumer<String>> scriptCallbacks = new ArrayList<>();
+    private int scriptRows = 0;
+
+    private final long startTime = System.nanoTime();
+    private long totalRows = 0;
+    private final AtomicLong totalCommands = new AtomicLong(0);
+    private final AtomicLong totalFailed = new AtomicLong(0);
+    private final AtomicLong roundTrips = new AtomicLong(0);
+
+    /**
+     * @param keyPrefix prepended to all written keys, e.g. the namespace of a cache generation
+     */
+    public RedisBatchWriter(final RedisUtils redisUtils, final String name, final int batchSize, final String keyPrefix) {
+        this(redisUtils, name, batchSize, keyPrefix, redisUtils.redisTTLInSeconds);
+    }
+
+    /**
+     * @param redisTTLInSeconds TTL of the written keys instead of the configured one
+     */
+    public RedisBatchWriter(final RedisUtils redisUtils, final String name, final int batchSize, final String keyPrefix,
+                            final int redisTTLInSeconds) {
+        this.redisUtils = redisUtils;
+        this.name = name;
+        this.redisTTLInSeconds = redisTTLInSeconds;
+        this.batchSize = Math.max(1, batchSize);
+        this.keyPrefix = keyPrefix;
+        this.respWriter = redisUtils.respWriter;
+        this.scriptWrites = redisUtils.scriptWritesEnabled && respWriter == null;
+        this.scriptRowsPerCall = Math.max(1, redisUtils.scriptRowsPerCall);
+        this.snapshotRecorder = redisUtils.snapshotRecorder;
+        this.keyLayout = redisUtils.keyLayout;
+    }
+
+    /**
+     * Sets a string value with TTL.
+     */
+    public void setValue(final String key, final String value, final Consumer<String> onReply) {
+        if (snapshotRecorder != null) {
+            snapshotRecorder.recordString(key, value);
+        }
+        final String prefixedKey = keyPrefix + key;
+        if (respWriter != null) {
+            writeResp(onReply, "OK", "SETEX", prefixedKey, Integer.toString(redisTTLInSeconds), value);
+            return;
+        }
+        if (scriptWrites) {
+            scriptKeys.add(prefixedKey);
+            scriptArgs.add(RedisUtils.SCRIPT_TYPE_STRING);
+            scriptArgs.add(value);
+            scriptCallbacks.add(onReply);
+            return;
+        }
+        commands.add(new QueuedCommand<>(prefixedKey, pipeline -> pipeline.setex(prefixedKey, redisTTLInSeconds, value), onReply));
+    }
+
+    /**
+     * Writes a small lookup value in the key layout configured in RedisUtils: as its own key, as a field of a bucket
+     * hash, or both.
+     *
+     * @param partition partition of the bucket, see {@link KeyBuckets}, null for none
+     * @param onResult called with true if all writes succeeded
+     */
+    public void setLookupValue(final String key, final String partition, final String value, final Consumer<Boolean> onResult) {
+        if (keyLayout == KeyBuckets.Layout.BOTH) {
+            //Both replies are handled on the same thread, as they are in the same batch
+            final boolean[] results = new boolean[] { true, true };
+            final int[] pending = new int[] { 2 };
+            setValue(key, value, reply -> {
+                results[0] = redisUtils.checkResponse(reply);
+                if (--pending[0] == 0) {
+                    onResult.accept(results[0] && results[1]);
+                }
+            });
+            setBucketValue(key, partition, value, reply -> {
+                results[1] = reply != null;
+                if (--pending[0] == 0) {
+                    onResult.accept(results[0] && results[1]);
+                }
+            });
+        } else if (keyLayout == KeyBuckets.Layout.BUCKETS) {
+            setBucketValue(key, partition, value, reply -> onResult.accept(reply != null));
+        } else {
+            setValue(key, value, reply -> onResult.accept(redisUtils.checkResponse(reply)));
+        }
+    }
+
+    /**
+     * Deletes a lookup value written with {@link #setLookupValue(String, String, String, Consumer)}, in every layout
+     * it was written in
+     *
+     * @param onResult called with true if all deletes succeeded
+     */
+    public void deleteLookupValue(final String key, final String partition, final Consumer<Boolean> onResult) {
+        final List<String[]> deletes = new ArrayList<>();
+        if (keyLayout.writesKeys()) {
+            deletes.add(new String[] { "DEL", keyPrefix + key });
+        }
+        if (keyLayout.writesBuckets()) {
+            deletes.add(new String[] { "HDEL", keyPrefix + redisUtils.keyBuckets.getBucketKey(key, partition), key });
+        }
+        //All replies are handled on the same thread, as they are in the same batch
+        final boolean[] success = new boolean[] { true };
+        final int[] pending = new int[] { deletes.size() };
+        for (String[] delete : deletes) {
+            final Consumer<Long> onReply = reply -> {
+                success[0] &= reply != null;
+                if (--pending[0] == 0) {
+                    onResult.accept(success[0]);
+                }
+            };
+            if (respWriter != null) {
+                writeResp(onReply, 1L, delete);
+            } else if (delete.length == 2) {
+                commands.add(new QueuedCommand<>(delete[1], pipeline -> pipeline.del(delete[1]), onReply, 0));
+            } else {
+                commands.add(new QueuedCommand<>(delete[1], pipeline -> pipeline.hdel(delete[1], delete[2]), onReply, 0));
+            }
+        }
+    }
+
+    /**
+     * Records an unchanged lookup value to the snapshot being recorded without writing it to Redis
+     */
+    public void recordLookupValue(final String key, final String partition, final String value) {
+        if (snapshotRecorder == null) {
+            return;
+        }
+        if (keyLayout.writesKeys()) {
+            snapshotRecorder.recordString(key, value);
+        }
+        if (keyLayout.writesBuckets()) {
+            snapshotRecorder.recordHash(redisUtils.keyBuckets.getBucketKey(key, partition), Collections.singletonMap(key, value));
+        }
+    }
+
+    /**
+     * Writes the value as a field of its bucket hash and sets the TTL of the bucket once per writer
+     */
+    public void setBucketValue(final String key, final String partition, final String value, final Consumer<Long> onReply) {
+        final String bucketKey = redisUtils.keyBuckets.getBucketKey(key, partition);
+        if (snapshotRecorder != null) {
+            snapshotRecorder.recordHash(bucketKey, Collections.singletonMap(key, value));
+        }
+        final String prefixedKey = keyPrefix + bucketKey;
+        if (respWriter != null) {
+            writeResp(onReply, 1L, "HSET", prefixedKey, key, value);
+            if (expiredBuckets.add(prefixedKey)) {
+                writeResp(null, null, "EXPIRE", prefixedKey, Integer.toString(redisTTLInSeconds));
+            }
+            return;
+        }
+        commands.add(new QueuedCommand<>(prefixedKey, pipeline -> pipeline.hset(prefixedKey, key, value), onReply, 1));
+        if (expiredBuckets.add(prefixedKey)) {
+            commands.add(new QueuedCommand<>(prefixedKey, pipeline -> pipeline.expire(prefixedKey, redisTTLInSeconds), null));
+        }
+    }
+
+    public void setValues(final String key, final Map<String, String> values, final Consumer<String> onReply) {
+        final String prefixedKey = keyPrefix + key;
+        if (respWriter != null) {
+            try {
+                respWriter.writeHash(prefixedKey, values);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            totalCommands.incrementAndGet();
+            if (onReply != null) {
+                onReply.accept("OK");
+            }
+            return;
+        }
+        commands.add(new QueuedCommand<>(prefixedKey, pipeline -> pipeline.hmset(prefixedKey, values), onReply));
+    }
+
+    /**
+     * Sets the fields of a hash and its TTL.
+     */
+    public void setValuesWithExpire(final String key, final Map<String, String> values, final Consumer<String> onReply) {
+        if (snapshotRecorder != null) {
+            snapshotRecorder.recordHash(key, values);
+        }
+        if (!scriptWrites) {
+            setValues(key, values, onReply);
+            setExpire(key);
+            return;
+        }
+        scriptKeys.add(keyPrefix + key);
+        scriptArgs.add(RedisUtils.SCRIPT_TYPE_HASH);
+        scriptArgs.add(Integer.toString(values.size()));
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            scriptArgs.add(entry.getKey());
+            scriptArgs.add(entry.getValue());
+        }
+        scriptCallbacks.add(onReply);
+    }
+
+    public void setExpire(final String key) {
+        final String prefixedKey = keyPrefix + key;
+        if (respWriter != null) {
+            writeResp(null, null, "EXPIRE", prefixedKey, Integer.toString(redisTTLInSeconds));
+            return;
+        }
+        commands.add(new QueuedCommand<>(prefixedKey, pipeline -> pipeline.expire(prefixedKey, redisTTLInSeconds), null));
+    }
+
+    private <T> void writeResp(final Consumer<T> onReply, final T reply, final String... args) {
+        try {
+            respWriter.write(args);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        totalCommands.incrementAndGet();
+        if (onReply != null) {
+            onReply.accept(reply);
+        }
+    }
+
+    /**
+     * Marks the end of the commands for one DB row, flushing the batch if it is full.
+     */
+    public void endRow() {
+        rowsInBatch++;
+        totalRows++;
+        if (scriptWrites && ++scriptRows >= scriptRowsPerCall) {
+            queueScriptCall();
+        }
+        if (rowsInBatch >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Turns the script writes buffered so far into one script call.
+     */
+    private void queueScriptCall() {
+        scriptRows = 0;
+        if (scriptKeys.isEmpty()) {
+            return;
+        }
+        final List<String> keys = scriptKeys;
+        final List<String> args = new ArrayList<>(scriptArgs.size() + 1);
+        args.add(Integer.toString(redisTTLInSeconds));
+        args.addAll(scriptArgs);
+        final List<Consumer<String>> callbacks = scriptCallbacks;
+        commands.add(new QueuedCommand<>(keys.get(0), pipeline -> pipeline.evalsha(redisUtils.getLoadedWriteScriptSha(), keys, args),
+                reply -> {
+                    final String response = reply != null ? "OK" : null;
+                    for (Consumer<String> callback : callbacks) {
+                        if (callback != null) {
+                            callback.accept(response);
+                        }
+                    }
+                }, keys.size()));
+        scriptKeys = new ArrayList<>();
+        scriptArgs = new ArrayList<>();
+        scriptCallbacks = new ArrayList<>();
+    }
+
+    public void flush() {
+        if (scriptWrites) {
+            queueScriptCall();
+        }
+        if (commands.isEmpty()) {
+            rowsInBatch = 0;
+            return;
+        }
+        final List<QueuedCommand<?>> batch = commands;
+        final int rows = rowsInBatch;
+        commands = new ArrayList<>();
+        rowsInBatch = 0;
+
+        if (redisUtils.writerPool != null) {
+            checkCompletedWrites();
+            pendingWrites.add(redisUtils.submitWrite(() -> write(batch, rows)));
+        } else {
+            write(batch, rows);
+        }
+    }
+
+    private void write(final List<QueuedCommand<?>> commands, final int rows) {
+        final WriteThrottle throttle = redisUtils.writeThrottle;
+        if (throttle != null) {
+            int weight = 0;
+            for (QueuedCommand<?> command : commands) {
+                //A script call writes many keys, count each of them
+                weight += Math.max(1, command.keys);
+            }
+            throttle.acquire(weight);
+        }
+        if (scriptWrites) {
+            //Resolve the script before the pipeline is opened, it may have to be loaded first
+            redisUtils.getWriteScriptSha();
+        }
+        final long latency = send(commands);
+        if (throttle != null) {
+            throttle.onWrite(latency);
+        }
+        final List<QueuedCommand<?>> retry = new ArrayList<>();
+        boolean missingScript = false;
+        boolean moved = false;
+        for (QueuedCommand<?> command : commands) {
+            final String error = command.getError();
+            if (error == null) {
+                continue;
+            }
+            if (error.startsWith("NOSCRIPT")) {
+                missingScript = true;
+                retry.add(command);
+            } else if (error.startsWith("MOVED") || error.startsWith("ASK")) {
+                moved = true;
+                retry.add(command);
+            }
+        }
+        if (missingScript) {
+            //Scripts are lost f.ex. when Redis restarts or fails over
+            log.warn("Write script not found in Redis, reloading it");
+            redisUtils.reloadWriteScript();
+        }
+        if (moved) {
+            log.warn("Redis Cluster slots have moved, refreshing the slot map");
+            redisUtils.clusterRouter.refresh();
+        }
+        //The retry is timed separately, so that the reload or refresh before it doesn't skew the write latency
+        final long retryLatency = retry.isEmpty() ? 0 : send(retry);
+        int failed = 0;
+        int keysWritten = 0;
+        for (QueuedCommand<?> command : commands) {
+            if (!command.complete()) {
+                failed++;
+            } else {
+                keysWritten += command.keys;
+            }
+        }
+        BootstrapperMetrics.recordRedisWrite(name, latency, keysWritten, failed);
+        if (!retry.isEmpty()) {
+            BootstrapperMetrics.recordRedisWrite(name, retryLatency, 0, 0);
+        }
+        if (failed > 0) {
+            log.warn("{} of {} pipelined Redis commands failed", failed, commands.size());
+        }
+        roundTrips.incrementAndGet();
+        totalCommands.addAndGet(commands.size());
+        totalFailed.addAndGet(failed);
+        redisUtils.recordCommands(commands.size(), failed);
+        log.debug("Flushed {} Redis commands for {} rows", commands.size(), rows);
+    }
+
+    /**
+     * Removes the batches that the writer pool has finished.
+     *
+     * @throws RuntimeException if a background write has failed
+     */
+    private void checkCompletedWrites() {
+        final Iterator<Future<?>> iterator = pendingWrites.iterator();
+        while (iterator.hasNext()) {
+            final Future<?> pending = iterator.next();
+            if (pending.isDone()) {
+                iterator.remove();
+                recordResult(pending);
+            }
+        }
+        throwWriteFailure();
+    }
+
+    /**
+     * Waits until all batches handed to the writer pool have been written.
+     *
+     * @throws RuntimeException if a background write has failed
+     */
+    private void awaitPendingWrites() {
+        for (Future<?> pending : pendingWrites) {
+            recordResult(pending);
+        }
+        pendingWrites.clear();
+        throwWriteFailure();
+    }
+
+    private void recordResult(final Future<?> pending) {
+        try {
+            pending.get();
+        } catch (ExecutionException e) {
+            if (writeFailure == null) {
+                writeFailure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for Redis writes", e);
+        }
+    }
+
+    /**
+     * Throws the first failure of a background write, f.ex. a JedisConnectionException, the first time and a wrapper
+     * of it after that, so that close doesn't throw the exception already being propagated.
+     */
+    private void throwWriteFailure() {
+        if (writeFailure == null) {
+            return;
+        }
+        if (writeFailureThrown) {
+            throw new IllegalStateException(name + ": a background Redis write failed", writeFailure);
+        }
+        writeFailureThrown = true;
+        throw writeFailure;
+    }
+
+    /**
+     * @return round-trip time of the pipeline in nanoseconds, from when the connection is held until all replies
+     * have been read, so that waiting for the connection shared with other writers doesn't count as Redis latency
+     */
+    private long send(final List<QueuedCommand<?>> toSend) {
+        if (redisUtils.clusterRouter != null) {
+            return sendToCluster(toSend);
+        }
+        return redisUtils.withJedis(client -> pipeline(client, toSend));
+    }
+
+    private static long pipeline(final Jedis client, final List<QueuedCommand<?>> toSend) {
+        final long startTime = System.nanoTime();
+        final Pipeline pipeline = client.pipelined();
+        for (QueuedCommand<?> command : toSend) {
+            command.send(pipeline);
+        }
+        pipeline.sync();
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Groups the commands by the cluster node serving their key and pipelines them to the nodes in parallel.
+     *
+     * @return the longest round-trip time of the node pipelines in nanoseconds
+     */
+    private long sendToCluster(final List<QueuedCommand<?>> toSend) {
+        final RedisClusterRouter router = redisUtils.clusterRouter;
+        final Map<Integer, List<QueuedCommand<?>>> commandsByNode = new HashMap<>();
+        for (QueuedCommand<?> command : toSend) {
+            commandsByNode.computeIfAbsent(router.getNode(command.key), node -> new ArrayList<>()).add(command);
+        }
+        final AtomicLong latency = new AtomicLong(0);
+        final Map<Integer, Function<Jedis, ?>> tasks = new HashMap<>();
+        commandsByNode.forEach((node, nodeCommands) ->
+                tasks.put(node, client -> latency.accumulateAndGet(pipeline(client, nodeCommands), Math::max)));
+        router.runOnNodes(tasks);
+        return latency.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            //Nothing more is sent after a failed background write, the query fails anyway
+            if (writeFailure == null) {
+                flush();
+            }
+        } finally {
+            awaitPendingWrites();
+        }
+        final double elapsedSecs = (System.nanoTime() - startTime) / 1e9;
+        log.info("{}: wrote {} rows with {} Redis commands in {} round-trips ({} failed), {} rows/s",
+                name, totalRows, totalCommands.get(), roundTrips.get(), totalFailed.get(),
+                elapsedSecs > 0 ? Math.round(totalRows / elapsedSecs) : totalRows);
+    }
+
+    private static class QueuedCommand<T> {
+        /** Key used to route the command to a cluster node */
+        private final String key;
+        private final Function<Pipeline, Response<T>> command;
+        private final Consumer<T> onReply;
+        /** Number of keys whose value the command writes, as opposed to e.g. only updating a TTL */
+        private final int keys;
+        private Response<T> response;
+
+        QueuedCommand(final String key, final Function<Pipeline, Response<T>> command, final Consumer<T> onReply) {
+            this(key, command, onReply, onReply != null ? 1 : 0);
+        }
+
+        QueuedCommand(final String key, final Function<Pipeline, Response<T>> command, final Consumer<T> onReply, final int keys) {
+            this.key = key;
+            this.command = command;
+            this.onReply = onReply;
+            this.keys = keys;
+        }
+
+        void send(final Pipeline pipeline) {
+            response = command.apply(pipeline);
+        }
+
+        /**
+         * @return the error returned by Redis, or null if the command succeeded
+         */
+        String getError() {
+            try {
+                response.get();
+                return null;
+            } catch (JedisDataException e) {
+                return e.getMessage() != null ? e.getMessage() : "";
+            }
+        }
+
+        boolean complete() {
+            T reply = null;
+            boolean success = true;
+            try {
+                reply = response.get();
+            } catch (JedisDataException e) {
+                log.debug("Redis returned an error for a pipelined command", e);
+                success = false;
+            }
+            if (onReply != null) {
+                onReply.accept(reply);
+            }
+            return success;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.util.JedisClusterCRC16;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Routes keys to the master nodes of a Redis Cluster by hash slot and keeps a connection pool per node.
+ * The slot map is read with CLUSTER SLOTS from the seed node and refreshed on demand, f.ex. after a MOVED reply.
+ */
+public class RedisClusterRouter {
+    private static final Logger log = LoggerFactory.getLogger(RedisClusterRouter.class);
+
+    private static final int SLOTS = 16384;
+
+    private final String seedHost;
+    private final int seedPort;
+    private final int poolSize;
+
+    private volatile int[] slotToNode = new int[SLOTS];
+    private volatile List<JedisPool> nodes = new ArrayList<>();
+    private final Map<String, JedisPool> poolsByAddress = new LinkedHashMap<>();
+    private final ExecutorService nodeWriters;
+
+    public RedisClusterRouter(final String seedHost, final int seedPort, final int poolSize) {
+        this.seedHost = seedHost;
+        this.seedPort = seedPort;
+        this.poolSize = Math.max(1, poolSize);
+        refresh();
+        this.nodeWriters = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Reads the slot map of the cluster from the seed node, or from any known node if the seed is unavailable.
+     */
+    public synchronized void refresh() {
+        List<Object> slots = null;
+        RuntimeException failure = null;
+        final List<JedisPool> candidates = new ArrayList<>(poolsByAddress.values());
+        candidates.add(0, getPool(seedHost, seedPort));
+        for (JedisPool candidate : candidates) {
+            try (Jedis client = candidate.getResource()) {
+                slots = client.clusterSlots();
+                break;
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+        if (slots == null) {
+            throw failure != null ? failure : new IllegalStateException("Failed to read Redis Cluster slots");
+        }
+
+        final int[] newSlotToNode = new int[SLOTS];
+        Arrays.fill(newSlotToNode, -1);
+        final List<JedisPool> newNodes = new ArrayList<>();
+        final Map<JedisPool, Integer> nodeIndexes = new LinkedHashMap<>();
+        for (Object slotRange : slots) {
+            final List<?> range = (List<?>) slotRange;
+            final int start = ((Number) range.get(0)).intValue();
+            final int end = ((Number) range.get(1)).intValue();
+            final List<?> master = (List<?>) range.get(2);
+            final JedisPool pool = getPool(asString(master.get(0)), ((Number) master.get(1)).intValue());
+            final int index = nodeIndexes.computeIfAbsent(pool, p -> {
+                newNodes.add(p);
+                return newNodes.size() - 1;
+            });
+            Arrays.fill(newSlotToNode, start, end + 1, index);
+        }
+        nodes = newNodes;
+        slotToNode = newSlotToNode;
+        log.info("Redis Cluster has {} master nodes", newNodes.size());
+    }
+
+    private JedisPool getPool(final String host, final int port) {
+        return poolsByAddress.computeIfAbsent(host + ":" + port, address -> {
+            final JedisPoolConfig poolConfig = new JedisPoolConfig();
+            poolConfig.setMaxTotal(poolSize);
+            poolConfig.setMaxIdle(poolSize);
+            return new JedisPool(poolConfig, host, port);
+        });
+    }
+
+    private static String asString(final Object value) {
+        return value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : String.valueOf(value);
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * @return index of the node serving the key
+     */
+    public int getNode(final String key) {
+        final int node = slotToNode[JedisClusterCRC16.getSlot(key)];
+        if (node < 0) {
+            throw new IllegalStateException("No Redis Cluster node serves the slot of key " + key);
+        }
+        return node;
+    }
+
+    public <T> T withNode(final int node, final Function<Jedis, T> function) {
+        try (Jedis client = nodes.get(node).getResource()) {
+            return function.apply(client);
+        }
+    }
+
+    public <T> T withKey(final String key, final Function<Jedis, T> function) {
+        return withNode(getNode(key), function);
+    }
+
+    /**
+     * Runs the task of each node in parallel with a connection to that node and waits for all of them.
+     *
+     * @throws RuntimeException the first exception thrown by a task
+     */
+    public void runOnNodes(final Map<Integer, Function<Jedis, ?>> tasksByNode) {
+        final List<Future<?>> results = new ArrayList<>();
+        for (Map.Entry<Integer, Function<Jedis, ?>> task : tasksByNode.entrySet()) {
+            results.add(nodeWriters.submit(() -> withNode(task.getKey(), task.getValue())));
+        }
+        RuntimeException failure = null;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while writing to Redis Cluster", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public synchronized void close() {
+        nodeWriters.shutdownNow();
+        for (JedisPool pool : poolsByAddress.values()) {
+            pool.close();
+        }
+    }
+}
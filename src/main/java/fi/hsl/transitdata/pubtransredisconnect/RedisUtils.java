@@ -6,55 +6,463 @@ import fi.hsl.common.transitdata.TransitdataProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 public class RedisUtils {
     private static final Logger log = LoggerFactory.getLogger(RedisUtils.class);
 
-    public Jedis jedis;
+    public static final String KEY_CACHE_GENERATION = "cache_generation";
+    public static final String KEY_CACHE_GENERATION_SEQUENCE = "cache_generation_sequence";
+    public static final String GENERATION_KEY_PREFIX = "gen:";
+
+    public static final String SCRIPT_TYPE_HASH = "h";
+    public static final String SCRIPT_TYPE_STRING = "s";
+    //Writes a batch of hashes and strings with a TTL. ARGV[1] is the TTL, followed by the values of each key in KEYS:
+    //either 'h', the number of fields and the field-value pairs of a hash, or 's' and the value of a string
+    private static final String WRITE_SCRIPT =
+            "local ttl = ARGV[1] " +
+            "local a = 2 " +
+            "for i = 1, #KEYS do " +
+            "  if ARGV[a] == 'h' then " +
+            "    local n = tonumber(ARGV[a + 1]) " +
+            "    redis.call('HSET', KEYS[i], unpack(ARGV, a + 2, a + 1 + 2 * n)) " +
+            "    redis.call('EXPIRE', KEYS[i], ttl) " +
+            "    a = a + 2 + 2 * n " +
+            "  else " +
+            "    redis.call('SET', KEYS[i], ARGV[a + 1], 'EX', ttl) " +
+            "    a = a + 2 " +
+            "  end " +
+            "end " +
+            "return #KEYS";
+
+    private static final int EXPIRE_SCAN_COUNT = 1000;
+    //Sets a TTL on one SCAN page of keys matching the pattern and returns the next cursor
+    private static final String EXPIRE_MATCHING_KEYS_SCRIPT =
+            "local result = redis.call('SCAN', ARGV[1], 'MATCH', ARGV[2], 'COUNT', ARGV[3]) " +
+            "for _, key in ipairs(result[2]) do redis.call('EXPIRE', key, ARGV[4]) end " +
+            "return result[1]";
+
+    /** Shared connection used when there is no pool, replaced with a new one after a connection failure */
+    public volatile Jedis jedis;
+    private final Object jedisLock = new Object();
+    private final String redisHost;
+    private final int redisPort;
+    public JedisPool jedisPool;
     public int redisTTLInSeconds;
+    public int pipelineBatchSize;
+
+    public boolean scriptWritesEnabled;
+    public int scriptRowsPerCall;
+    private volatile String writeScriptSha;
+
+    /** Format of the stop and reverse-lookup keys */
+    public KeyBuckets.Layout keyLayout;
+    public KeyBuckets keyBuckets;
+
+    public boolean generationsEnabled;
+    public int generationGracePeriodSecs;
+    private volatile String writeKeyPrefix = "";
+    private Long writingGeneration = null;
+    private Long publishedGeneration = null;
+    private final List<Long> retiredGenerations = new ArrayList<>();
+
+    /** Set while a full refresh is recorded to the cache snapshot */
+    public volatile CacheSnapshot.Recorder snapshotRecorder;
+
+    /** Set in bulk load mode, batch writers then write their commands to it instead of Redis */
+    public volatile RespWriter respWriter;
+
+    /** Set if writing to a Redis Cluster */
+    public RedisClusterRouter clusterRouter;
+
+    public ExecutorService writerPool;
+    /** Limits the rate of batch writes, null if not throttled */
+    public WriteThrottle writeThrottle;
+    private Semaphore writeSlots;
+
+    public final AtomicLong commandCounter = new AtomicLong(0);
+    public final AtomicLong failedCommandCounter = new AtomicLong(0);
+    public final AtomicLong roundTripCounter = new AtomicLong(0);
 
     public RedisUtils(final PulsarApplicationContext context) {
-        final Config config = context.getConfig();
-        jedis = context.getJedis();
+        this(context.getConfig(), context.getJedis());
+    }
+
+    /**
+     * @param jedis shared connection used when there is no connection pool
+     */
+    public RedisUtils(final Config config, final Jedis jedis) {
+        this(config, jedis, true);
+    }
+
+    /**
+     * Creates an instance for bulk load mode that doesn't connect to Redis, as the commands are only written to
+     * {@link #respWriter}. Script writes and cache generations, which need a connection, are disabled.
+     */
+    public static RedisUtils forBulkLoad(final Config config) {
+        return new RedisUtils(config, null, false);
+    }
+
+    private RedisUtils(final Config config, final Jedis jedis, final boolean connect) {
+        this.jedis = jedis;
+        redisHost = config.getString("redis.host");
+        redisPort = config.getInt("redis.port");
         redisTTLInSeconds = config.getInt("bootstrapper.redisTTLInDays") * 24 * 60 * 60;
+        pipelineBatchSize = config.getInt("bootstrapper.redisPipelineBatchSize");
         log.info("Redis TTL in secs: " + redisTTLInSeconds);
+        log.info("Redis pipeline batch size: " + pipelineBatchSize);
+
+        scriptWritesEnabled = config.getBoolean("bootstrapper.redisScriptWritesEnabled");
+        scriptRowsPerCall = config.getInt("bootstrapper.redisScriptRowsPerCall");
+        if (scriptWritesEnabled) {
+            log.info("Writing values with a Lua script, " + scriptRowsPerCall + " rows per call");
+        }
+
+        keyLayout = KeyBuckets.Layout.valueOf(config.getString("bootstrapper.keyLayout").trim().toUpperCase());
+        keyBuckets = new KeyBuckets(config.getInt("bootstrapper.keyBucketCount"));
+        if (keyLayout.writesBuckets()) {
+            log.info("Writing lookup keys in layout " + keyLayout + " with " + keyBuckets.bucketCount + " buckets");
+        }
+
+        generationsEnabled = config.getBoolean("bootstrapper.generationsEnabled");
+        generationGracePeriodSecs = config.getInt("bootstrapper.generationGracePeriodSecs");
+        if (!connect && (scriptWritesEnabled || generationsEnabled)) {
+            log.info("Script writes and cache generations are not used in bulk load mode");
+            scriptWritesEnabled = false;
+            generationsEnabled = false;
+        }
+        if (!connect) {
+            return;
+        }
+        if (generationsEnabled) {
+            log.info("Writing versioned cache generations, previous generations expire in " + generationGracePeriodSecs + " secs");
+        }
+
+        final int writerThreads = config.getInt("bootstrapper.redisWriterThreads");
+        if (writerThreads > 0) {
+            final int queueSize = config.getInt("bootstrapper.redisWriteQueueSize");
+            writerPool = Executors.newFixedThreadPool(writerThreads);
+            writeSlots = new Semaphore(writerThreads + Math.max(0, queueSize));
+            log.info("Writing to Redis in the background with " + writerThreads + " threads, " + queueSize + " batches queued");
+        }
+
+        final int maxWriteRate = config.getInt("bootstrapper.redisWriteMaxCommandsPerSecond");
+        if (maxWriteRate > 0) {
+            writeThrottle = new WriteThrottle(maxWriteRate, config.getInt("bootstrapper.redisWriteMinCommandsPerSecond"),
+                    config.getLong("bootstrapper.redisWriteTargetLatencyMillis"));
+            log.info("Throttling Redis writes to at most " + maxWriteRate + " commands/s, target batch latency "
+                    + writeThrottle.targetLatencyNanos / 1000000 + " ms");
+        }
+
+        final int poolSize = config.getInt("bootstrapper.redisPoolSize");
+        if (config.getBoolean("bootstrapper.redisClusterEnabled")) {
+            clusterRouter = new RedisClusterRouter(config.getString("redis.host"), config.getInt("redis.port"), poolSize);
+            if (scriptWritesEnabled || generationsEnabled) {
+                //Both write keys of many hash slots in one command, which a cluster doesn't allow
+                log.warn("Script writes and cache generations can't be used with Redis Cluster, disabling them");
+                scriptWritesEnabled = false;
+                generationsEnabled = false;
+            }
+        } else if (poolSize > 1) {
+            final JedisPoolConfig poolConfig = new JedisPoolConfig();
+            poolConfig.setMaxTotal(poolSize);
+            poolConfig.setMaxIdle(poolSize);
+            jedisPool = new JedisPool(poolConfig, config.getString("redis.host"), config.getInt("redis.port"));
+            log.info("Using Redis connection pool of size " + poolSize);
+        }
+        if (scriptWritesEnabled) {
+            //Load the script up front, batch writers must not load it while they have a pipeline open
+            reloadWriteScript();
+        }
     }
 
-    public String setValue(final String key, final String value) {
-        synchronized (jedis) {
-            return jedis.setex(key, redisTTLInSeconds, value);
+    /**
+     * Runs the given function with a Redis connection that can access the given key. With Redis Cluster the
+     * connection is to the node serving the key, otherwise the same as {@link #withJedis(Function)}.
+     */
+    public <T> T withJedis(final String key, final Function<Jedis, T> function) {
+        if (clusterRouter != null) {
+            return clusterRouter.withKey(key, function);
         }
+        return withJedis(function);
     }
 
-    public String setValues(final String key, final Map<String, String> values) {
-        synchronized (jedis) {
-            return jedis.hmset(key, values);
+    /**
+     * Runs the given function with a Redis connection. Connections are borrowed from the pool if one is configured,
+     * otherwise the shared Jedis instance is used exclusively for the duration of the call.
+     *
+     * If the shared connection fails, it is replaced so that retries don't reuse a broken connection or one with
+     * unread pipelined replies. Broken pooled connections are discarded by the pool.
+     */
+    public <T> T withJedis(final Function<Jedis, T> function) {
+        if (jedisPool != null) {
+            try (Jedis pooled = jedisPool.getResource()) {
+                return function.apply(pooled);
+            }
+        }
+        synchronized (jedisLock) {
+            try {
+                return function.apply(jedis);
+            } catch (JedisConnectionException e) {
+                reconnect();
+                throw e;
+            }
         }
     }
 
-    public Long setExpire(final String key) {
-        synchronized (jedis) {
-            return jedis.expire(key, redisTTLInSeconds);
+    private void reconnect() {
+        log.warn("Redis connection failed, reconnecting to {}:{}", redisHost, redisPort);
+        try {
+            jedis.close();
+        } catch (Exception e) {
+            log.debug("Failed to close the broken Redis connection", e);
         }
+        jedis = new Jedis(redisHost, redisPort);
+    }
+
+    /**
+     * Records commands sent to Redis in one round-trip
+     */
+    public void recordCommands(final int commands, final int failed) {
+        commandCounter.addAndGet(commands);
+        failedCommandCounter.addAndGet(failed);
+        roundTripCounter.incrementAndGet();
+    }
+
+    /**
+     * Submits a write to the writer pool, blocking while the maximum number of writes is already in flight.
+     */
+    public Future<?> submitWrite(final Runnable write) {
+        try {
+            writeSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a Redis writer", e);
+        }
+        try {
+            return writerPool.submit(() -> {
+                try {
+                    write.run();
+                } finally {
+                    writeSlots.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            writeSlots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @param name used to label the metrics of the writer
+     */
+    public RedisBatchWriter newBatchWriter(final String name) {
+        return new RedisBatchWriter(this, name, pipelineBatchSize, writeKeyPrefix);
     }
 
+    /**
+     * @param ttlInSeconds TTL of the written keys instead of {@link #redisTTLInSeconds}
+     */
+    public RedisBatchWriter newBatchWriter(final String name, final int ttlInSeconds) {
+        return new RedisBatchWriter(this, name, pipelineBatchSize, writeKeyPrefix, ttlInSeconds);
+    }
+
+    /**
+     * @return SHA1 of the write script, loading it to Redis if needed. Uses a connection of its own, so must not be
+     * called while a pipeline is open.
+     */
+    public String getWriteScriptSha() {
+        String sha = writeScriptSha;
+        if (sha == null) {
+            sha = reloadWriteScript();
+        }
+        return sha;
+    }
+
+    /**
+     * @return SHA1 of the write script loaded by {@link #getWriteScriptSha()}, without loading it
+     */
+    public String getLoadedWriteScriptSha() {
+        return writeScriptSha;
+    }
+
+    public String reloadWriteScript() {
+        final String sha = withJedis(client -> client.scriptLoad(WRITE_SCRIPT));
+        log.info("Loaded write script to Redis, SHA1 {}", sha);
+        writeScriptSha = sha;
+        return sha;
+    }
+
+    /**
+     * Starts writing a new cache generation if generations are enabled. Until the generation is published by
+     * {@link #updateTimestamp()}, all keys written by batch writers go to the namespace of the new generation.
+     */
+    public void beginGeneration() {
+        if (!generationsEnabled) {
+            return;
+        }
+        if (publishedGeneration == null) {
+            final String published = withJedis(client -> client.get(KEY_CACHE_GENERATION));
+            if (published != null) {
+                publishedGeneration = Long.parseLong(published);
+            }
+        }
+        final Long generation = withJedis(client -> client.incr(KEY_CACHE_GENERATION_SEQUENCE));
+        writingGeneration = generation;
+        writeKeyPrefix = getGenerationKeyPrefix(generation);
+        log.info("Writing cache generation {}", generation);
+    }
+
+    /**
+     * Discards the generation being written, e.g. after a failed refresh. Its keys are expired lazily.
+     */
+    public void abandonGeneration() {
+        if (writingGeneration != null) {
+            log.warn("Abandoning cache generation {}", writingGeneration);
+            retiredGenerations.add(writingGeneration);
+            writingGeneration = null;
+            writeKeyPrefix = "";
+        }
+    }
+
+    /**
+     * Sets a short TTL on the keys of generations that are no longer published, so that readers which resolved
+     * the previous generation pointer can still finish their lookups.
+     */
+    public void expireRetiredGenerations() {
+        while (!retiredGenerations.isEmpty()) {
+            final Long generation = retiredGenerations.get(0);
+            final String pattern = getGenerationKeyPrefix(generation) + "*";
+            final List<String> args = new ArrayList<>(Arrays.asList("0", pattern, Integer.toString(EXPIRE_SCAN_COUNT),
+                    Integer.toString(generationGracePeriodSecs)));
+            try {
+                do {
+                    final Object cursor = withJedis(client -> client.eval(EXPIRE_MATCHING_KEYS_SCRIPT, Collections.emptyList(), args));
+                    args.set(0, String.valueOf(cursor));
+                } while (!"0".equals(args.get(0)));
+            } catch (Exception e) {
+                log.warn("Failed to expire keys of cache generation {}, retrying after next refresh", generation, e);
+                return;
+            }
+            log.info("Keys of cache generation {} expire in {} secs", generation, generationGracePeriodSecs);
+            retiredGenerations.remove(0);
+        }
+    }
+
+    public static String getGenerationKeyPrefix(final long generation) {
+        return GENERATION_KEY_PREFIX + generation + ":";
+    }
+
+    public String setValue(final String key, final String value) {
+        recordCommands(1, 0);
+        return withJedis(key, client -> client.setex(key, redisTTLInSeconds, value));
+    }
+
+    public String setValues(final String key, final Map<String, String> values) {
+        recordCommands(1, 0);
+        return withJedis(key, client -> client.hmset(key, values));
+    }
+
+    public Long setExpire(final String key) {
+        recordCommands(1, 0);
+        return withJedis(key, client -> client.expire(key, redisTTLInSeconds));
+    }
+
+    /**
+     * @return false if the cache timestamp is missing, which means that Redis has lost the keys written so far,
+     * f.ex. after a flush or a failover to an empty replica
+     */
+    public boolean hasCacheTimestamp() {
+        final String key = TransitdataProperties.KEY_LAST_CACHE_UPDATE_TIMESTAMP;
+        return Boolean.TRUE.equals(withJedis(key, client -> client.exists(key)));
+    }
+
+    /**
+     * Updates the cache timestamp. If a generation is being written, it is published by updating the generation
+     * pointer together with the timestamp in one transaction.
+     */
     public void updateTimestamp() {
-        synchronized (jedis) {
-            final OffsetDateTime now = OffsetDateTime.now();
-            final String ts = DateTimeFormatter.ISO_INSTANT.format(now);
-            log.info("Updating Redis with latest timestamp: " + ts);
-            final String result = jedis.set(TransitdataProperties.KEY_LAST_CACHE_UPDATE_TIMESTAMP, ts);
-            if (!checkResponse(result)) {
-                log.error("Failed to update cache timestamp to Redis!");
+        final OffsetDateTime now = OffsetDateTime.now();
+        final String ts = DateTimeFormatter.ISO_INSTANT.format(now);
+        if (writingGeneration != null) {
+            publishGeneration(ts);
+            return;
+        }
+        if (respWriter != null) {
+            try {
+                respWriter.write("SET", TransitdataProperties.KEY_LAST_CACHE_UPDATE_TIMESTAMP, ts);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+            return;
         }
+        log.info("Updating Redis with latest timestamp: " + ts);
+        recordCommands(1, 0);
+        final String result = withJedis(TransitdataProperties.KEY_LAST_CACHE_UPDATE_TIMESTAMP,
+                client -> client.set(TransitdataProperties.KEY_LAST_CACHE_UPDATE_TIMESTAMP, ts));
+        if (!checkResponse(result)) {
+            log.error("Failed to update cache timestamp to Redis!");
+        }
+    }
+
+    private void publishGeneration(final String ts) {
+        final Long generation = writingGeneration;
+        log.info("Publishing cache generation {} with timestamp {}", generation, ts);
+        recordCommands(2, 0);
+        final List<Object> results = withJedis(client -> {
+            final Transaction transaction = client.multi();
+            transaction.set(KEY_CACHE_GENERATION, generation.toString());
+            transaction.set(TransitdataProperties.KEY_LAST_CACHE_UPDATE_TIMESTAMP, ts);
+            return transaction.exec();
+        });
+        if (results == null || results.size() != 2 || !checkResponse(String.valueOf(results.get(0)))) {
+            log.error("Failed to publish cache generation {} to Redis!", generation);
+            abandonGeneration();
+            return;
+        }
+        if (publishedGeneration != null) {
+            retiredGenerations.add(publishedGeneration);
+        }
+        publishedGeneration = generation;
+        writingGeneration = null;
+        writeKeyPrefix = "";
     }
 
     public boolean checkResponse(final String response) {
         return response != null && response.equalsIgnoreCase("OK");
     }
+
+    public void close() {
+        if (writerPool != null) {
+            writerPool.shutdownNow();
+        }
+        if (clusterRouter != null) {
+            clusterRouter.close();
+        }
+        if (jedisPool != null) {
+            jedisPool.close();
+        }
+        if (jedis != null) {
+            jedis.close();
+        }
+    }
 }
@@ -0,0 +1,61 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Progress of a refresh cycle: the query jobs, i.e. processors and date shards, that have not completed yet.
+ * A cycle interrupted by failures is resumed by running only the remaining jobs.
+ */
+public class RefreshCheckpoint {
+    public final boolean fullRefresh;
+    /** Whether the jobs cover the whole query window of each processor in this cycle */
+    public final boolean completeWindow;
+    public final long startTime;
+    public final int totalJobs;
+    /** Near-term schedule run by this cycle, null for other cycles */
+    public ProcessorRegistry.Schedule nearTermSchedule;
+    /** Resource usage of the cycle, including its resumes */
+    public CycleStats stats;
+    /** Processors refreshed in this cycle */
+    public final Set<AbstractResultSetProcessor> processors = new LinkedHashSet<>();
+
+    private List<QueryJob> remainingJobs;
+    private int resumes = 0;
+
+    public RefreshCheckpoint(final List<QueryJob> jobs, final boolean fullRefresh, final boolean completeWindow) {
+        this.remainingJobs = new ArrayList<>(jobs);
+        this.totalJobs = jobs.size();
+        for (QueryJob job : jobs) {
+            processors.add(job.processor);
+        }
+        this.fullRefresh = fullRefresh;
+        this.completeWindow = completeWindow;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    public List<QueryJob> getRemainingJobs() {
+        return remainingJobs;
+    }
+
+    /**
+     * @param failedJobs jobs of the latest attempt that did not complete, in their original order
+     */
+    public void update(final List<QueryJob> failedJobs) {
+        remainingJobs = new ArrayList<>(failedJobs);
+    }
+
+    public boolean isComplete() {
+        return remainingJobs.isEmpty();
+    }
+
+    public int getResumes() {
+        return resumes;
+    }
+
+    public void resumed() {
+        resumes++;
+    }
+}
@@ -0,0 +1,207 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes Redis commands in the raw RESP protocol to a file, f.ex. to seed an empty Redis with redis-cli --pipe.
+ * The path can also be a named pipe read by redis-cli. The file can be streamed to Redis with
+ * {@link #replay(Path, String, int)}.
+ */
+public class RespWriter implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RespWriter.class);
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final String REPLAY_END = "transitdata-replay-end";
+
+    private final FileChannel channel;
+    private final boolean regularFile;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long commands = 0;
+
+    private RespWriter(final FileChannel channel, final boolean regularFile) {
+        this.channel = channel;
+        this.regularFile = regularFile;
+    }
+
+    public static RespWriter open(final Path path) throws IOException {
+        final boolean regularFile = !Files.exists(path) || Files.isRegularFile(path);
+        return new RespWriter(FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), regularFile);
+    }
+
+    public synchronized void write(final String... args) throws IOException {
+        writeHeader('*', args.length);
+        for (String arg : args) {
+            writeBulkString(arg);
+        }
+        commands++;
+    }
+
+    /**
+     * Writes the fields of a hash with HMSET
+     */
+    public synchronized void writeHash(final String key, final Map<String, String> values) throws IOException {
+        writeHeader('*', 2 + values.size() * 2);
+        writeBulkString("HMSET");
+        writeBulkString(key);
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            writeBulkString(entry.getKey());
+            writeBulkString(entry.getValue());
+        }
+        commands++;
+    }
+
+    public synchronized long getCommands() {
+        return commands;
+    }
+
+    private void writeHeader(final char type, final int length) throws IOException {
+        put(new byte[] { (byte) type });
+        put(Integer.toString(length).getBytes(StandardCharsets.US_ASCII));
+        put(CRLF);
+    }
+
+    private void writeBulkString(final String value) throws IOException {
+        final byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+        writeHeader('$', bytes.length);
+        put(bytes);
+        put(CRLF);
+    }
+
+    private void put(final byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            final int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            drain();
+            if (regularFile) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+        log.info("Wrote {} Redis commands", commands);
+    }
+
+    /**
+     * Streams a RESP file to Redis as fast as the connection allows, reading the replies concurrently
+     * like redis-cli --pipe does.
+     *
+     * @return number of commands that Redis replied to with an error
+     */
+    public static long replay(final Path path, final String host, final int port) throws Exception {
+        log.info("Streaming Redis commands from {} to {}:{}", path, host, port);
+        final long startTime = System.currentTimeMillis();
+        final ExecutorService replyReader = Executors.newSingleThreadExecutor();
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port));
+             FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            final Socket plainSocket = socket.socket();
+            final Future<long[]> replies = replyReader.submit(() -> countReplies(plainSocket.getInputStream()));
+
+            long position = 0;
+            final long size = file.size();
+            while (position < size) {
+                position += file.transferTo(position, size - position, socket);
+            }
+            //Redis replies to ECHO after all previous commands, which marks the end of the replies
+            final byte[] marker = ("*2\r\n$4\r\nECHO\r\n$" + REPLAY_END.length() + "\r\n" + REPLAY_END + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            final ByteBuffer markerBuffer = ByteBuffer.wrap(marker);
+            while (markerBuffer.hasRemaining()) {
+                socket.write(markerBuffer);
+            }
+
+            final long[] counts = replies.get();
+            log.info("Replayed {} Redis commands from {} in {} ms, {} errors", counts[0], path,
+                    System.currentTimeMillis() - startTime, counts[1]);
+            return counts[1];
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            replyReader.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads replies until the reply of the end marker
+     *
+     * @return number of replies and number of error replies
+     */
+    private static long[] countReplies(final InputStream socketIn) throws IOException {
+        final InputStream in = new BufferedInputStream(socketIn, 64 * 1024);
+        long replies = 0;
+        long errors = 0;
+        while (true) {
+            final int type = in.read();
+            if (type < 0) {
+                throw new IOException("Redis closed the connection before all replies were read");
+            }
+            final String line = readLine(in);
+            if (type == '$') {
+                final int length = Integer.parseInt(line);
+                if (length >= 0) {
+                    final byte[] value = in.readNBytes(length + 2);
+                    if (new String(value, 0, length, StandardCharsets.UTF_8).equals(REPLAY_END)) {
+                        return new long[] { replies, errors };
+                    }
+                }
+            } else if (type == '-') {
+                errors++;
+                if (errors <= 10) {
+                    log.warn("Redis returned an error: {}", line);
+                }
+            }
+            replies++;
+        }
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) {
+                throw new IOException("Unexpected end of Redis replies");
+            }
+            line.append((char) c);
+        }
+        in.read();
+        return line.toString();
+    }
+}
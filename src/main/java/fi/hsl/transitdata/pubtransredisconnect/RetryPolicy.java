@@ -0,0 +1,71 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.Callable;
+
+/**
+ * Retries tasks that fail because of transient database or Redis failures, with exponential backoff between attempts.
+ */
+public class RetryPolicy {
+    private static final Logger log = LoggerFactory.getLogger(RetryPolicy.class);
+
+    public final int maxAttempts;
+    public final long initialBackoffMillis;
+    public final long maxBackoffMillis;
+
+    public RetryPolicy(final int maxAttempts, final long initialBackoffMillis, final long maxBackoffMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * @throws Exception the exception of the last attempt, or of the first attempt that failed with a non-transient failure
+     */
+    public <T> T call(final String name, final Callable<T> task) throws Exception {
+        long backoffMillis = initialBackoffMillis;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                if (attempt >= maxAttempts || !isTransient(e)) {
+                    throw e;
+                }
+                log.warn("{} failed on attempt {}/{}, retrying in {} ms: {}", name, attempt, maxAttempts, backoffMillis, e.toString());
+                Thread.sleep(backoffMillis);
+                backoffMillis = Math.min(maxBackoffMillis, backoffMillis * 2);
+            }
+        }
+    }
+
+    /**
+     * Lost Redis connections are transient because {@link RedisUtils} replaces a failed shared connection, and the
+     * pool discards broken pooled ones.
+     *
+     * @return true if the failure or any of its causes is a lost connection or another failure that may succeed when retried
+     */
+    public static boolean isTransient(final Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof JedisConnectionException || t instanceof SQLTransientException || t instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                final String state = ((SQLException) t).getSQLState();
+                //Class 08 is connection exceptions, 40001 is a deadlock victim / serialization failure
+                if (state != null && (state.startsWith("08") || state.equals("40001"))) {
+                    return true;
+                }
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -5,31 +5,223 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.ResultSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class StopResultSetProcessor extends AbstractResultSetProcessor {
 
     private static final Logger log = LoggerFactory.getLogger(StopResultSetProcessor.class);
 
+    /** Whether to write only the stops that changed since the previous load */
+    private final boolean differential;
+    /**
+     * Gid to Number of the stops in Redis, null until the first successful load. Kept in differential mode and when
+     * stops are written to buckets, whose fields don't expire as long as the bucket is written to.
+     */
+    private volatile LongStringMap stopIndex;
+    private volatile long lastFullWriteTime = 0;
+
     public StopResultSetProcessor(final RedisUtils redisUtils, final QueryUtils queryUtils) {
         super(redisUtils, queryUtils);
+        this.differential = false;
+    }
+
+    public StopResultSetProcessor(final RedisUtils redisUtils, final QueryUtils queryUtils, final ChangeTracker changeTracker) {
+        this(redisUtils, queryUtils, changeTracker, false);
     }
 
-    public void processResultSet(final ResultSet resultSet) throws Exception {
+    public StopResultSetProcessor(final RedisUtils redisUtils, final QueryUtils queryUtils, final ChangeTracker changeTracker,
+                                  final boolean differential) {
+        super(redisUtils, queryUtils, changeTracker);
+        this.differential = differential;
+    }
+
+    public void processResultSet(final ResultSet resultSet, final QueryStats stats) throws Exception {
+        if (differential) {
+            processDifferentially(resultSet, stats);
+            return;
+        }
+        //Bucket TTLs are renewed on every load, so removed stops must be deleted from their buckets
+        final LongStringMap previous = stopIndex;
+        final LongStringMap loaded = redisUtils.keyLayout.writesBuckets()
+                ? new LongStringMap(previous != null ? previous.size() : 0)
+                : null;
+        final Set<Long> failedDeletes = ConcurrentHashMap.newKeySet();
+        final AtomicInteger deleteCounter = new AtomicInteger(0);
         int rowCounter = 0;
-        int redisCounter = 0;
-
-        while(resultSet.next()) {
-            rowCounter++;
-            String key = TransitdataProperties.REDIS_PREFIX_JPP  + resultSet.getString("Gid");
-            String response = redisUtils.setValue(key, resultSet.getString("Number"));
-            if (redisUtils.checkResponse(response)) {
-                redisCounter++;
-            } else {
-                log.error("Failed to set stop key {}, Redis returned {}", key, response);
+        final AtomicInteger redisCounter = new AtomicInteger(0);
+
+        final int gidColumn = resultSet.findColumn("Gid");
+        final int numberColumn = resultSet.findColumn("Number");
+
+        try (RedisBatchWriter writer = redisUtils.newBatchWriter(getName())) {
+            while (stats.next(resultSet)) {
+                rowCounter++;
+                final String gidValue = resultSet.getString(gidColumn);
+                final String key = TransitdataProperties.REDIS_PREFIX_JPP  + gidValue;
+                final String number = resultSet.getString(numberColumn);
+                final long gid = parseGid(gidValue);
+                if (loaded != null && gid >= 0 && number != null) {
+                    loaded.put(gid, number);
+                }
+                final int fingerprint = ChangeTracker.fingerprint(number);
+                if (!changeTracker.hasChanged(key, fingerprint)) {
+                    continue;
+                }
+
+                writer.setLookupValue(key, null, number, success -> {
+                    if (success) {
+                        changeTracker.markWritten(key, fingerprint);
+                        redisCounter.incrementAndGet();
+                    } else {
+                        log.error("Failed to set stop key {}", key);
+                    }
+                });
+                writer.endRow();
+            }
+
+            if (loaded != null && previous != null) {
+                deleteRemoved(writer, previous, loaded, deleteCounter, failedDeletes);
             }
         }
 
-        log.info("Inserted {} redis stop id keys (jpp-id) for {} DB rows", redisCounter, rowCounter);
+        if (loaded != null) {
+            for (Long gid : failedDeletes) {
+                loaded.put(gid, previous.get(gid));
+            }
+            stopIndex = loaded;
+        }
+        log.info("Inserted {} redis stop id keys (jpp-id) for {} DB rows, {} removed stops deleted",
+                redisCounter.get(), rowCounter, deleteCounter.get());
+    }
+
+    /**
+     * Diffs the stops against the index of the previous load, writes only new and changed stops and deletes removed
+     * stops. All stops are rewritten when half of the Redis TTL has passed since they were last written, which keeps
+     * the unchanged keys from expiring.
+     */
+    private void processDifferentially(final ResultSet resultSet, final QueryStats stats) throws Exception {
+        final long startTime = System.currentTimeMillis();
+        final LongStringMap previous = stopIndex;
+        final boolean fullWrite = previous == null || startTime - lastFullWriteTime >= redisUtils.redisTTLInSeconds * 1000L / 2;
+        final LongStringMap loaded = new LongStringMap(previous != null ? previous.size() : 0);
+        final Set<Long> failedGids = ConcurrentHashMap.newKeySet();
+        final Set<Long> failedDeletes = ConcurrentHashMap.newKeySet();
+        final AtomicInteger deleteCounter = new AtomicInteger(0);
+        int rowCounter = 0;
+        int unchangedCounter = 0;
+        int existingCounter = 0;
+        final AtomicInteger redisCounter = new AtomicInteger(0);
+
+        final int gidColumn = resultSet.findColumn("Gid");
+        final int numberColumn = resultSet.findColumn("Number");
+
+        try (RedisBatchWriter writer = redisUtils.newBatchWriter(getName())) {
+            while (stats.next(resultSet)) {
+                rowCounter++;
+                final String gidValue = resultSet.getString(gidColumn);
+                final String key = TransitdataProperties.REDIS_PREFIX_JPP + gidValue;
+                final String number = resultSet.getString(numberColumn);
+                final long gid = parseGid(gidValue);
+                final boolean indexed = gid >= 0 && number != null;
+
+                if (indexed) {
+                    final String previousNumber = previous != null ? previous.get(gid) : null;
+                    if (previousNumber != null) {
+                        existingCounter++;
+                    }
+                    loaded.put(gid, number);
+                    if (!fullWrite && number.equals(previousNumber)) {
+                        unchangedCounter++;
+                        writer.recordLookupValue(key, null, number);
+                        continue;
+                    }
+                }
+
+                writer.setLookupValue(key, null, number, success -> {
+                    if (success) {
+                        redisCounter.incrementAndGet();
+                    } else {
+                        log.error("Failed to set stop key {}", key);
+                        if (indexed) {
+                            failedGids.add(gid);
+                        }
+                    }
+                });
+                writer.endRow();
+            }
+
+            if (previous != null) {
+                deleteRemoved(writer, previous, loaded, deleteCounter, failedDeletes);
+            }
+        }
+
+        //Failed stops are written again on the next load
+        for (Long gid : failedGids) {
+            loaded.remove(gid);
+        }
+        //Stops that failed to be deleted are still in Redis, so they are deleted again on the next load
+        for (Long gid : failedDeletes) {
+            loaded.put(gid, previous.get(gid));
+        }
+        stopIndex = loaded;
+        if (fullWrite) {
+            lastFullWriteTime = startTime;
+        }
+        log.info("Inserted {} redis stop id keys (jpp-id) for {} DB rows ({} write), {} unchanged, {} of {} removed stops deleted",
+                redisCounter.get(), rowCounter, fullWrite ? "full" : "differential", unchangedCounter,
+                deleteCounter.get(), previous != null ? previous.size() - existingCounter : 0);
+    }
+
+    /**
+     * Deletes the stops of the previous load that are not in the current one
+     */
+    private static void deleteRemoved(final RedisBatchWriter writer, final LongStringMap previous, final LongStringMap loaded,
+                                      final AtomicInteger deleteCounter, final Set<Long> failedDeletes) {
+        previous.forEach((gid, number) -> {
+            if (loaded.get(gid) != null) {
+                return;
+            }
+            final String key = TransitdataProperties.REDIS_PREFIX_JPP + gid;
+            writer.deleteLookupValue(key, null, success -> {
+                if (success) {
+                    deleteCounter.incrementAndGet();
+                } else {
+                    log.error("Failed to delete removed stop key {}", key);
+                    failedDeletes.add(gid);
+                }
+            });
+            writer.endRow();
+        });
+    }
+
+    @Override
+    public void cacheLost() {
+        //Write all stops on the next load
+        stopIndex = null;
+    }
+
+    /**
+     * @return the Gid as a number, or -1 if it is not numeric
+     */
+    private static long parseGid(final String gid) {
+        if (gid == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(gid.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String getChangeIndicatorQuery() {
+        return new StringBuilder()
+                .append("SELECT COUNT_BIG(*), CHECKSUM_AGG(CHECKSUM(JPP.Gid, JPP.Number)) ")
+                .append("FROM [ptDOI4_Community].[dbo].[JourneyPatternPoint] AS JPP ")
+                .toString();
     }
 
     protected String getQuery() {
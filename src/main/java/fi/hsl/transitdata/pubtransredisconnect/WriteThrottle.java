@@ -0,0 +1,88 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of Redis write commands so that the refresh doesn't degrade the read latency of other services
+ * using the same Redis. The rate is adjusted AIMD-style from the round-trip latency of the written batches: it is
+ * halved when a batch takes longer than the target latency and increased by a fixed step otherwise, never above the
+ * configured maximum.
+ *
+ * Shared by all batch writers and writer threads.
+ */
+public class WriteThrottle {
+    private static final Logger log = LoggerFactory.getLogger(WriteThrottle.class);
+
+    private static final double DECREASE_FACTOR = 0.5;
+    /** Number of batches under the target latency to get from the minimum rate back to the maximum */
+    private static final int INCREASE_STEPS = 50;
+
+    public final double maxCommandsPerSecond;
+    public final double minCommandsPerSecond;
+    /** Round-trip latency of a batch above which the rate is decreased, 0 for a fixed rate */
+    public final long targetLatencyNanos;
+    private final double increaseStep;
+
+    private double commandsPerSecond;
+    private long nextSendTime = System.nanoTime();
+
+    public WriteThrottle(final double maxCommandsPerSecond, final double minCommandsPerSecond, final long targetLatencyMillis) {
+        this.maxCommandsPerSecond = maxCommandsPerSecond;
+        this.minCommandsPerSecond = Math.max(1, Math.min(minCommandsPerSecond, maxCommandsPerSecond));
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.increaseStep = (maxCommandsPerSecond - this.minCommandsPerSecond) / INCREASE_STEPS;
+        this.commandsPerSecond = maxCommandsPerSecond;
+        BootstrapperMetrics.recordWriteRateLimit(commandsPerSecond);
+    }
+
+    /**
+     * Blocks until the given number of commands can be sent at the current rate
+     */
+    public void acquire(final int commands) {
+        final long waitNanos;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            //Unused time is not saved up, so the rate is not exceeded after a pause
+            final long sendTime = Math.max(now, nextSendTime);
+            nextSendTime = sendTime + (long) (commands * 1e9 / commandsPerSecond);
+            waitNanos = sendTime - now;
+        }
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while throttling Redis writes", e);
+            }
+        }
+    }
+
+    /**
+     * Adjusts the rate from the round-trip latency of a written batch
+     */
+    public synchronized void onWrite(final long latencyNanos) {
+        if (targetLatencyNanos <= 0) {
+            return;
+        }
+        final double previous = commandsPerSecond;
+        if (latencyNanos > targetLatencyNanos) {
+            commandsPerSecond = Math.max(minCommandsPerSecond, commandsPerSecond * DECREASE_FACTOR);
+            if (commandsPerSecond < previous) {
+                log.debug("Redis write latency {} ms above target, limiting writes to {} commands/s",
+                        TimeUnit.NANOSECONDS.toMillis(latencyNanos), Math.round(commandsPerSecond));
+            }
+        } else {
+            commandsPerSecond = Math.min(maxCommandsPerSecond, commandsPerSecond + increaseStep);
+        }
+        if (commandsPerSecond != previous) {
+            BootstrapperMetrics.recordWriteRateLimit(commandsPerSecond);
+        }
+    }
+
+    public synchronized double getCommandsPerSecond() {
+        return commandsPerSecond;
+    }
+}
@@ -0,0 +1,129 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import com.typesafe.config.Config;
+import fi.hsl.common.transitdata.TransitdataProperties;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a full refresh cycle at growing data volumes: the real QueryProcessor and processors query generated PubTrans
+ * data through JDBC and write to a fake Redis. Reports the cycle time, peak heap and Redis commands of each volume,
+ * to catch costs that grow faster than the data.
+ *
+ * Not run by the default build. Run it with
+ * mvn test -Dtest=CycleScaleBenchmark [-Dscale.factors=1,2,10] [-Dscale.journeysPerDay=2000] [-Dscale.stops=1000]
+ * and bootstrapper settings as system properties, f.ex. -Dbootstrapper.queryFutureInDays=30
+ * -Dbootstrapper.parallelQueriesEnabled=true. The query window is a week unless set.
+ *
+ * Give the JVM enough heap for the largest volume, the peak heap is only comparable between volumes if the heap
+ * is not full.
+ */
+public class CycleScaleBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(CycleScaleBenchmark.class);
+
+    private static final int METRO_EVERY = 33;
+
+    private final int[] factors = Arrays.stream(System.getProperty("scale.factors", "1,2").split(","))
+            .mapToInt(factor -> Integer.parseInt(factor.trim()))
+            .toArray();
+    private final int journeysPerDay = Integer.getInteger("scale.journeysPerDay", 2000);
+    private final int stops = Integer.getInteger("scale.stops", 1000);
+
+    @Test
+    public void runCycles() throws Exception {
+        final List<String> summary = new ArrayList<>();
+        double baseMillisPerRow = 0;
+        for (int factor : factors) {
+            final Cycle cycle = runCycle(factor);
+            final CycleStats stats = cycle.stats;
+            final double millisPerRow = stats.durationMillis / (double) cycle.rows;
+            if (baseMillisPerRow == 0) {
+                baseMillisPerRow = millisPerRow;
+            }
+            summary.add(String.format("%3dx: %8d rows in %6d ms (%.2f x the time per row of %dx), peak heap %5d MB, %8d Redis commands in %6d round-trips",
+                    factor, cycle.rows, stats.durationMillis, millisPerRow / baseMillisPerRow, factors[0],
+                    stats.peakHeapBytes / (1024 * 1024), stats.commands, stats.roundTrips));
+        }
+        log.info("Refresh cycles by data volume:\n{}", String.join("\n", summary));
+    }
+
+    private static class Cycle {
+        final CycleStats stats;
+        /** Rows read by all queries */
+        final long rows;
+
+        Cycle(final CycleStats stats, final long rows) {
+            this.stats = stats;
+            this.rows = rows;
+        }
+    }
+
+    private Cycle runCycle(final int factor) throws Exception {
+        final SyntheticPubtrans data = new SyntheticPubtrans(stops * factor, journeysPerDay * factor, METRO_EVERY);
+        final String name = "scale-" + factor;
+        final String url = data.register(name);
+        try (FakeRedisServer redis = new FakeRedisServer(false)) {
+            final Config config = HarnessConfig.create(redis,
+                    "bootstrapper.queryHistoryInDays=1\nbootstrapper.queryFutureInDays=6\n");
+            final RedisUtils redisUtils = new RedisUtils(config, new Jedis(redis.getHost(), redis.getPort()));
+            try {
+                final QueryUtils queryUtils = new QueryUtils(config.getInt("bootstrapper.queryHistoryInDays"),
+                        config.getInt("bootstrapper.queryFutureInDays"), 0);
+                //Processors and jobs of a full refresh as Main creates them
+                final ProcessorRegistry registry = ProcessorFactory.createRegistry(config, redisUtils, queryUtils,
+                        TimeUnit.HOURS.toMillis(1), false, config.getBoolean("bootstrapper.differentialStopsEnabled"));
+                final List<QueryJob> jobs = ProcessorFactory.createQueryJobs(registry, registry.getProcessors(), queryUtils,
+                        config.getInt("bootstrapper.queryShardSizeInDays"));
+
+                System.gc();
+                final CycleStats stats = CycleStats.start(redisUtils);
+                final List<QueryJob> failed = runQueries(config, url, jobs);
+                if (failed.isEmpty()) {
+                    redisUtils.updateTimestamp();
+                }
+                stats.finish(jobs.size(), failed.isEmpty());
+
+                final LocalDate from = LocalDate.parse(queryUtils.from);
+                final LocalDate to = LocalDate.parse(queryUtils.to);
+                final long journeys = data.getRowCount(SyntheticPubtrans.Shape.JOURNEYS, from, to);
+                final boolean combined = config.getBoolean("bootstrapper.combinedJourneyQueryEnabled");
+                final long rows = journeys + data.stopCount
+                        + (combined ? 0 : data.getRowCount(SyntheticPubtrans.Shape.METRO_JOURNEYS, from, to));
+                log.info("{}x: Redis commands {}", factor, redis.getCommandCounts());
+
+                assertTrue(failed.size() + " queries failed at " + factor + "x", failed.isEmpty());
+                assertEquals("failed Redis commands at " + factor + "x", 0, stats.failedCommands);
+                assertEquals("journeys written at " + factor + "x", journeys,
+                        redis.getCommandCount("HMSET", TransitdataProperties.REDIS_PREFIX_DVJ));
+                return new Cycle(stats, rows);
+            } finally {
+                redisUtils.close();
+                SyntheticPubtrans.unregister(name);
+            }
+        }
+    }
+
+    private static List<QueryJob> runQueries(final Config config, final String url, final List<QueryJob> jobs) throws Exception {
+        final int fetchSize = config.getInt("bootstrapper.queryFetchSize");
+        final String queryHints = config.getString("bootstrapper.queryHints").trim();
+        final RetryPolicy retryPolicy = new RetryPolicy(config.getInt("bootstrapper.queryRetryAttempts"),
+                config.getLong("bootstrapper.queryRetryInitialBackoffMillis"),
+                config.getLong("bootstrapper.queryRetryMaxBackoffMillis"));
+        if (config.getBoolean("bootstrapper.parallelQueriesEnabled")) {
+            return QueryProcessor.executeAndProcessQueriesInParallel(url, fetchSize, queryHints, jobs,
+                    config.getInt("bootstrapper.queryParallelism"), retryPolicy);
+        }
+        return QueryProcessor.executeAndProcessQueries(url, fetchSize, queryHints, jobs, retryPolicy);
+    }
+}
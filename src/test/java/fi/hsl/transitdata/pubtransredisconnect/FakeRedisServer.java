@@ -0,0 +1,314 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for Redis that speaks enough of the RESP protocol for the commands of the bootstrapper:
+ * strings, hashes, TTLs and deletes. TTLs are only counted, keys never expire. Lua scripts, transactions and
+ * Redis Cluster are not supported, so script writes, generations and cluster mode must be disabled.
+ *
+ * Commands are counted by name and key prefix. Values are only stored if requested, so that the server doesn't
+ * hold the whole cache on the heap of the JVM being measured.
+ */
+public class FakeRedisServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "fake-redis");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final boolean storeValues;
+    private final Map<String, Object> store = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> commandCounts = new ConcurrentHashMap<>();
+    private final AtomicLong totalCommands = new AtomicLong(0);
+    private final AtomicLong bytesReceived = new AtomicLong(0);
+    /** Connections are closed without a reply when a command with a key of this prefix is received, null for none */
+    private volatile String failingKeyPrefix;
+
+    /**
+     * @param storeValues whether to keep the written values so that they can be read back
+     */
+    public FakeRedisServer(final boolean storeValues) throws IOException {
+        this.storeValues = storeValues;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread acceptor = new Thread(this::accept, "fake-redis-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getTotalCommands() {
+        return totalCommands.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @param prefix key prefix up to and including the first ':', f.ex. "dvj:", or "" for keys without one
+     */
+    public long getCommandCount(final String command, final String prefix) {
+        final AtomicLong count = commandCounts.get(command + " " + prefix);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @return command counts by command and key prefix, sorted
+     */
+    public Map<String, Long> getCommandCounts() {
+        final Map<String, Long> counts = new TreeMap<>();
+        commandCounts.forEach((command, count) -> counts.put(command, count.get()));
+        return counts;
+    }
+
+    /**
+     * Simulates a lost connection: closes the connection of any command with a key starting with the prefix
+     *
+     * @param prefix key prefix, null to stop failing
+     */
+    public void failCommands(final String prefix) {
+        failingKeyPrefix = prefix;
+    }
+
+    public void resetCounts() {
+        commandCounts.clear();
+        totalCommands.set(0);
+        bytesReceived.set(0);
+    }
+
+    public String get(final String key) {
+        final Object value = store.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, String> getHash(final String key) {
+        final Object value = store.get(key);
+        return value instanceof Map ? (Map<String, String>) value : null;
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connections.submit(() -> serve(socket));
+            } catch (IOException e) {
+                //Closed
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        try (Socket s = socket;
+             InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+             OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024)) {
+            List<String> command;
+            while ((command = readCommand(in)) != null) {
+                final String failing = failingKeyPrefix;
+                if (failing != null && command.size() > 1 && command.get(1).startsWith(failing)) {
+                    return;
+                }
+                execute(command, out);
+                //Reply to a pipeline in one write
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            //Client disconnected
+        }
+    }
+
+    private List<String> readCommand(final InputStream in) throws IOException {
+        final int type = in.read();
+        if (type < 0) {
+            return null;
+        }
+        if (type != '*') {
+            throw new IOException("Inline commands are not supported");
+        }
+        final int count = Integer.parseInt(readLine(in));
+        final List<String> args = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("Expected a bulk string");
+            }
+            final int length = Integer.parseInt(readLine(in));
+            final byte[] value = in.readNBytes(length);
+            in.readNBytes(2);
+            args.add(new String(value, StandardCharsets.UTF_8));
+            bytesReceived.addAndGet(length);
+        }
+        return args;
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            line.append((char) c);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    private void execute(final List<String> args, final OutputStream out) throws IOException {
+        final String name = args.get(0).toUpperCase(Locale.ROOT);
+        final String key = args.size() > 1 ? args.get(1) : "";
+        totalCommands.incrementAndGet();
+        commandCounts.computeIfAbsent(name + " " + prefixOf(key), k -> new AtomicLong()).incrementAndGet();
+
+        switch (name) {
+            case "PING":
+                simple(out, "PONG");
+                break;
+            case "ECHO":
+                bulk(out, key);
+                break;
+            case "SET":
+                set(args, out);
+                break;
+            case "SETEX":
+                put(key, args.get(3));
+                simple(out, "OK");
+                break;
+            case "GET":
+                bulk(out, get(key));
+                break;
+            case "EXISTS":
+                integer(out, store.containsKey(key) ? 1 : 0);
+                break;
+            case "DEL":
+                integer(out, store.remove(key) != null ? 1 : 0);
+                break;
+            case "EXPIRE":
+            case "PEXPIRE":
+                integer(out, !storeValues || store.containsKey(key) ? 1 : 0);
+                break;
+            case "HSET":
+            case "HMSET":
+                int added = 0;
+                for (int i = 2; i + 1 < args.size(); i += 2) {
+                    added += putField(key, args.get(i), args.get(i + 1)) ? 1 : 0;
+                }
+                if (name.equals("HSET")) {
+                    integer(out, added);
+                } else {
+                    simple(out, "OK");
+                }
+                break;
+            case "HGET":
+                final Map<String, String> hash = getHash(key);
+                bulk(out, hash != null ? hash.get(args.get(2)) : null);
+                break;
+            case "HDEL":
+                final Map<String, String> fields = getHash(key);
+                integer(out, fields != null && fields.remove(args.get(2)) != null ? 1 : 0);
+                break;
+            case "SELECT":
+            case "AUTH":
+            case "CLIENT":
+                simple(out, "OK");
+                break;
+            default:
+                error(out, "ERR unknown command '" + name + "'");
+        }
+    }
+
+    private void set(final List<String> args, final OutputStream out) throws IOException {
+        final String key = args.get(1);
+        boolean nx = false;
+        for (int i = 3; i < args.size(); i++) {
+            if (args.get(i).equalsIgnoreCase("NX")) {
+                nx = true;
+            }
+        }
+        if (nx && store.putIfAbsent(key, args.get(2)) != null) {
+            bulk(out, null);
+            return;
+        }
+        put(key, args.get(2));
+        simple(out, "OK");
+    }
+
+    private void put(final String key, final String value) {
+        if (storeValues) {
+            store.put(key, value);
+        }
+    }
+
+    private boolean putField(final String key, final String field, final String value) {
+        if (!storeValues) {
+            return true;
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, String> hash = (Map<String, String>) store.computeIfAbsent(key, k -> new ConcurrentHashMap<String, String>());
+        return hash.put(field, value) == null;
+    }
+
+    private static String prefixOf(final String key) {
+        final int separator = key.indexOf(':');
+        return separator >= 0 ? key.substring(0, separator + 1) : "";
+    }
+
+    private static void simple(final OutputStream out, final String value) throws IOException {
+        out.write(('+' + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void error(final OutputStream out, final String message) throws IOException {
+        out.write(('-' + message + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void integer(final OutputStream out, final long value) throws IOException {
+        out.write((":" + value + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void bulk(final OutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.write("$-1\r\n".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.write(('$' + Integer.toString(bytes.length) + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(bytes);
+        out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+}
@@ -0,0 +1,32 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Configuration of the benchmark and the scale test: the defaults of environment.conf pointed at a fake Redis.
+ * Settings can be overridden from the command line, f.ex. mvn test -Dbootstrapper.redisPipelineBatchSize=5000.
+ * Features that the fake Redis doesn't support are disabled.
+ */
+final class HarnessConfig {
+    private HarnessConfig() {}
+
+    /**
+     * @param overrides settings in HOCON, overridden by system properties
+     */
+    static Config create(final FakeRedisServer redis, final String overrides) {
+        final Config harness = ConfigFactory.parseString(
+                "redis.host=\"" + redis.getHost() + "\"\n"
+                + "redis.port=" + redis.getPort() + "\n"
+                + "bootstrapper.redisScriptWritesEnabled=false\n"
+                + "bootstrapper.generationsEnabled=false\n"
+                + "bootstrapper.redisClusterEnabled=false\n"
+                + "bootstrapper.coordinationEnabled=false\n"
+                + "bootstrapper.changeDetectionEnabled=false\n"
+                + overrides);
+        return ConfigFactory.systemProperties()
+                .withFallback(harness)
+                .withFallback(ConfigFactory.parseResourcesAnySyntax("environment.conf"))
+                .resolve();
+    }
+}
@@ -0,0 +1,63 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import com.typesafe.config.Config;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedisBatchWriterTest {
+    private static final String BACKGROUND_WRITES =
+            "bootstrapper.redisWriterThreads=2\nbootstrapper.redisWriteQueueSize=2\nbootstrapper.redisPipelineBatchSize=10\n";
+
+    @Test
+    public void failedBackgroundWriteIsRethrown() throws Exception {
+        try (FakeRedisServer redis = new FakeRedisServer(false)) {
+            final RedisUtils redisUtils = createRedisUtils(redis);
+            try {
+                redis.failCommands("failing:");
+                try (RedisBatchWriter writer = redisUtils.newBatchWriter("test")) {
+                    for (int i = 0; i < 100; i++) {
+                        writer.setValue("failing:" + i, "value", null);
+                        writer.endRow();
+                    }
+                }
+                fail("Writer closed without the failure of its background writes");
+            } catch (RuntimeException e) {
+                assertTrue("Unexpected failure " + e, RetryPolicy.isTransient(e));
+            } finally {
+                redisUtils.close();
+            }
+        }
+    }
+
+    @Test
+    public void queryFailsWhenBackgroundWriteFails() throws Exception {
+        final SyntheticPubtrans data = new SyntheticPubtrans(10, 200, 33);
+        final String url = data.register("failing-writes");
+        try (FakeRedisServer redis = new FakeRedisServer(false)) {
+            final RedisUtils redisUtils = createRedisUtils(redis);
+            try {
+                final QueryUtils queryUtils = new QueryUtils(0, 1, 0);
+                final QueryJob job = new QueryJob(new JourneyResultSetProcessor(redisUtils, queryUtils));
+                redis.failCommands("dvj:");
+                final List<QueryJob> failed = QueryProcessor.executeAndProcessQueries(url, 0, "",
+                        Collections.singletonList(job), new RetryPolicy(2, 0, 0));
+                assertEquals(Collections.singletonList(job), failed);
+            } finally {
+                redisUtils.close();
+                SyntheticPubtrans.unregister("failing-writes");
+            }
+        }
+    }
+
+    private static RedisUtils createRedisUtils(final FakeRedisServer redis) {
+        final Config config = HarnessConfig.create(redis, BACKGROUND_WRITES);
+        return new RedisUtils(config, new Jedis(redis.getHost(), redis.getPort()));
+    }
+}
@@ -0,0 +1,346 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+import java.util.logging.Logger;
+
+/**
+ * Generated PubTrans data served through JDBC, so that the real queries of the processors can be run without
+ * SQL Server. The result set of a query has the columns of the processor that issued it and the journeys of the
+ * operating days bound to its parameters. Rows are generated as they are read, like a streaming driver.
+ *
+ * Every operating day has the same journeys: runs of 100 journeys per route and direction, 10 minutes apart, every
+ * metroEvery:th of them a metro journey starting from a stop of the stop table.
+ */
+public class SyntheticPubtrans {
+    public static final String URL_PREFIX = "jdbc:synthetic:";
+
+    private static final Map<String, SyntheticPubtrans> datasets = new ConcurrentHashMap<>();
+
+    private static final long FIRST_STOP_GID = 9025200000000L;
+    private static final long FIRST_DVJ_ID = 7000000000000000L;
+    private static final int JOURNEYS_PER_ROUTE_DIRECTION = 100;
+    private static final DateTimeFormatter OPERATING_DAY_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+
+    static {
+        try {
+            DriverManager.registerDriver(new SyntheticDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Result set shapes of the processor queries
+     */
+    public enum Shape {
+        STOPS("Gid", "Number"),
+        JOURNEYS("dvj_id", "route", "direction", "operating_day", "start_time"),
+        METRO_JOURNEYS("dvj_id", "route", "direction", "operating_day", "start_time", "stop_number"),
+        COMBINED_JOURNEYS("dvj_id", "route", "direction", "operating_day", "start_time", "transport_mode", "stop_number");
+
+        public final String[] columns;
+
+        Shape(final String... columns) {
+            this.columns = columns;
+        }
+    }
+
+    public final int stopCount;
+    public final int journeysPerDay;
+    public final int metroEvery;
+    /** Number of queries executed, by shape */
+    public final Map<Shape, AtomicInteger> queryCounts = new ConcurrentHashMap<>();
+
+    /**
+     * @param metroEvery every metroEvery:th journey is a metro journey, 1 for only metro journeys
+     */
+    public SyntheticPubtrans(final int stopCount, final int journeysPerDay, final int metroEvery) {
+        this.stopCount = Math.max(1, stopCount);
+        this.journeysPerDay = journeysPerDay;
+        this.metroEvery = Math.max(1, metroEvery);
+    }
+
+    /**
+     * Makes the data available to {@link DriverManager#getConnection(String)}
+     *
+     * @return the JDBC URL of the data
+     */
+    public String register(final String name) {
+        datasets.put(name, this);
+        return URL_PREFIX + name;
+    }
+
+    public static void unregister(final String name) {
+        datasets.remove(name);
+    }
+
+    public long getRowCount(final Shape shape, final LocalDate from, final LocalDate to) {
+        if (shape == Shape.STOPS) {
+            return stopCount;
+        }
+        return (to.toEpochDay() - from.toEpochDay()) * getRowsPerDay(shape);
+    }
+
+    private int getRowsPerDay(final Shape shape) {
+        return shape == Shape.METRO_JOURNEYS ? (journeysPerDay + metroEvery - 1) / metroEvery : journeysPerDay;
+    }
+
+    /**
+     * @return all rows of the shape, f.ex. to iterate the same rows many times without generating them again
+     */
+    public List<String[]> getRows(final Shape shape, final LocalDate from, final LocalDate to) {
+        final int count = Math.toIntExact(getRowCount(shape, from, to));
+        final LongFunction<String[]> rows = rowGenerator(shape, from);
+        final List<String[]> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(rows.apply(i));
+        }
+        return list;
+    }
+
+    /**
+     * @return forward-only result set of the given rows
+     */
+    public static ResultSet newResultSet(final Shape shape, final List<String[]> rows) {
+        return newResultSet(shape.columns, rows.size(), i -> rows.get((int) i));
+    }
+
+    public ResultSet newResultSet(final Shape shape, final LocalDate from, final LocalDate to) {
+        return newResultSet(shape.columns, getRowCount(shape, from, to), rowGenerator(shape, from));
+    }
+
+    private LongFunction<String[]> rowGenerator(final Shape shape, final LocalDate from) {
+        if (shape == Shape.STOPS) {
+            return i -> new String[] { Long.toString(FIRST_STOP_GID + i), getStopNumber((int) i) };
+        }
+        final int rowsPerDay = getRowsPerDay(shape);
+        final int journeyStep = shape == Shape.METRO_JOURNEYS ? metroEvery : 1;
+        return i -> {
+            final LocalDate day = from.plusDays(i / rowsPerDay);
+            final int journey = (int) (i % rowsPerDay) * journeyStep;
+            return journeyRow(shape, day, journey);
+        };
+    }
+
+    private String[] journeyRow(final Shape shape, final LocalDate day, final int journey) {
+        final String dvjId = Long.toString(FIRST_DVJ_ID + day.toEpochDay() * 1000000L + journey);
+        final String route = Integer.toString(1000 + journey / (2 * JOURNEYS_PER_ROUTE_DIRECTION));
+        final String direction = Integer.toString(1 + journey / JOURNEYS_PER_ROUTE_DIRECTION % 2);
+        final String operatingDay = OPERATING_DAY_FORMAT.format(day);
+        final int startMinutes = 5 * 60 + journey % JOURNEYS_PER_ROUTE_DIRECTION * 10;
+        final String startTime = String.format(Locale.ROOT, "%02d:%02d:00", startMinutes / 60, startMinutes % 60);
+        final boolean metro = journey % metroEvery == 0;
+        //Metro journeys start from different stops so that their keys don't collide
+        final String stopNumber = getStopNumber(journey / metroEvery);
+        switch (shape) {
+            case JOURNEYS:
+                return new String[] { dvjId, route, direction, operatingDay, startTime };
+            case METRO_JOURNEYS:
+                return new String[] { dvjId, route, direction, operatingDay, startTime, stopNumber };
+            default:
+                return new String[] { dvjId, route, direction, operatingDay, startTime, metro ? "METRO" : "BUS", stopNumber };
+        }
+    }
+
+    private String getStopNumber(final int stop) {
+        return Integer.toString(1000000 + stop % stopCount);
+    }
+
+    /**
+     * Chooses the shape of the result set from the columns the query selects
+     */
+    static Shape getShape(final String sql) throws SQLException {
+        final String query = sql.toLowerCase(Locale.ROOT);
+        if (query.contains(" as transport_mode")) {
+            return Shape.COMBINED_JOURNEYS;
+        } else if (query.contains(" as stop_number")) {
+            return Shape.METRO_JOURNEYS;
+        } else if (query.contains(" as dvj_id")) {
+            return Shape.JOURNEYS;
+        } else if (query.contains("[gid], [number]")) {
+            return Shape.STOPS;
+        }
+        throw new SQLFeatureNotSupportedException("Unsupported query: " + sql);
+    }
+
+    private ResultSet executeQuery(final String sql, final Object[] parameters) throws SQLException {
+        final Shape shape = getShape(sql);
+        queryCounts.computeIfAbsent(shape, s -> new AtomicInteger()).incrementAndGet();
+        if (shape == Shape.STOPS) {
+            return newResultSet(shape, null, null);
+        }
+        if (!(parameters[0] instanceof Date) || !(parameters[1] instanceof Date)) {
+            throw new SQLException("Operating days of the query are not bound");
+        }
+        return newResultSet(shape, ((Date) parameters[0]).toLocalDate(), ((Date) parameters[1]).toLocalDate());
+    }
+
+    private Connection newConnection() {
+        final boolean[] closed = { false };
+        return proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return newStatement((String) args[0]);
+                case "close":
+                    closed[0] = true;
+                    return null;
+                case "isClosed":
+                    return closed[0];
+                case "isValid":
+                    return !closed[0];
+                default:
+                    return unsupported(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    private PreparedStatement newStatement(final String sql) {
+        final Object[] parameters = new Object[2];
+        return proxy(PreparedStatement.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "setObject":
+                    parameters[(Integer) args[0] - 1] = args[1];
+                    return null;
+                case "clearParameters":
+                    parameters[0] = null;
+                    parameters[1] = null;
+                    return null;
+                case "executeQuery":
+                    return executeQuery(sql, parameters);
+                case "setFetchSize":
+                case "close":
+                    return null;
+                case "isWrapperFor":
+                    return false;
+                default:
+                    return unsupported(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    private static ResultSet newResultSet(final String[] columns, final long rowCount, final LongFunction<String[]> rows) {
+        final Map<String, Integer> columnIndexes = new HashMap<>();
+        for (int i = 0; i < columns.length; i++) {
+            columnIndexes.put(columns[i].toLowerCase(Locale.ROOT), i + 1);
+        }
+        final long[] position = { -1 };
+        final String[][] row = { null };
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    position[0]++;
+                    row[0] = position[0] < rowCount ? rows.apply(position[0]) : null;
+                    return row[0] != null;
+                case "findColumn":
+                    return findColumn(columnIndexes, (String) args[0]);
+                case "getString":
+                    if (row[0] == null) {
+                        throw new SQLException("No current row");
+                    }
+                    final int column = args[0] instanceof Integer ? (Integer) args[0] : findColumn(columnIndexes, (String) args[0]);
+                    return row[0][column - 1];
+                case "close":
+                case "setFetchSize":
+                    return null;
+                case "isWrapperFor":
+                    return false;
+                default:
+                    return unsupported(proxy, method.getName(), args);
+            }
+        });
+    }
+
+    private static int findColumn(final Map<String, Integer> columnIndexes, final String column) throws SQLException {
+        final Integer index = columnIndexes.get(column.toLowerCase(Locale.ROOT));
+        if (index == null) {
+            throw new SQLException("Invalid column name " + column);
+        }
+        return index;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(SyntheticPubtrans.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object unsupported(final Object proxy, final String method, final Object[] args) throws SQLException {
+        switch (method) {
+            case "toString":
+                return proxy.getClass().getInterfaces()[0].getSimpleName() + "@" + System.identityHashCode(proxy);
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new SQLFeatureNotSupportedException(method + " is not supported by the synthetic data");
+        }
+    }
+
+    /**
+     * Connects to the data registered with {@link #register(String)}
+     */
+    public static class SyntheticDriver implements Driver {
+        @Override
+        public Connection connect(final String url, final Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            final SyntheticPubtrans dataset = datasets.get(url.substring(URL_PREFIX.length()));
+            if (dataset == null) {
+                throw new SQLException("No synthetic data registered for " + url);
+            }
+            return dataset.newConnection();
+        }
+
+        @Override
+        public boolean acceptsURL(final String url) {
+            return url != null && url.startsWith(URL_PREFIX);
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package fi.hsl.transitdata.pubtransredisconnect;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the row-to-Redis write path of each processor: rows per second, heap allocated per row and Redis commands
+ * and round-trips per row. The processors read pre-generated rows from an in-memory result set and write to a fake
+ * Redis over a real socket, so the numbers include the Jedis pipeline and the network stack but not the database.
+ *
+ * Not run by the default build. Run it with
+ * mvn test -Dtest=WritePathBenchmark [-Dbenchmark.rows=100000] [-Dbenchmark.iterations=10] [-Dbenchmark.warmup=5]
+ * and bootstrapper settings as system properties, f.ex. -Dbootstrapper.redisPipelineBatchSize=5000.
+ *
+ * Allocations are counted for all threads except the fake Redis. Allocations of the result set itself are measured
+ * by scanning the rows without processing them and subtracted from the processor allocations.
+ */
+public class WritePathBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(WritePathBenchmark.class);
+
+    private final int rows = Integer.getInteger("benchmark.rows", 20000);
+    private final int iterations = Integer.getInteger("benchmark.iterations", 5);
+    private final int warmup = Integer.getInteger("benchmark.warmup", 3);
+
+    @Test
+    public void benchmarkProcessors() throws Exception {
+        //One operating day with metro journeys only, so that every processor gets the same number of rows
+        final SyntheticPubtrans data = new SyntheticPubtrans(rows, rows, 1);
+        final LocalDate today = LocalDate.now();
+        final LocalDate tomorrow = today.plusDays(1);
+
+        try (FakeRedisServer redis = new FakeRedisServer(false)) {
+            final RedisUtils redisUtils = new RedisUtils(HarnessConfig.create(redis, ""), new Jedis(redis.getHost(), redis.getPort()));
+            final QueryUtils queryUtils = new QueryUtils(0, 1, 0);
+            try {
+                run("JourneyResultSetProcessor", redisUtils, redis, data.getRows(SyntheticPubtrans.Shape.JOURNEYS, today, tomorrow),
+                        SyntheticPubtrans.Shape.JOURNEYS, () -> new JourneyResultSetProcessor(redisUtils, queryUtils));
+                run("MetroJourneyResultSetProcessor", redisUtils, redis, data.getRows(SyntheticPubtrans.Shape.METRO_JOURNEYS, today, tomorrow),
+                        SyntheticPubtrans.Shape.METRO_JOURNEYS, () -> new MetroJourneyResultSetProcessor(redisUtils, queryUtils));
+                run("CombinedJourneyResultSetProcessor", redisUtils, redis, data.getRows(SyntheticPubtrans.Shape.COMBINED_JOURNEYS, today, tomorrow),
+                        SyntheticPubtrans.Shape.COMBINED_JOURNEYS, () -> new CombinedJourneyResultSetProcessor(redisUtils, queryUtils));
+                run("StopResultSetProcessor", redisUtils, redis, data.getRows(SyntheticPubtrans.Shape.STOPS, null, null),
+                        SyntheticPubtrans.Shape.STOPS, () -> new StopResultSetProcessor(redisUtils, queryUtils));
+            } finally {
+                redisUtils.close();
+            }
+        }
+    }
+
+    /**
+     * Processes the rows with a new processor in every iteration, so that nothing is skipped as unchanged
+     */
+    private void run(final String name, final RedisUtils redisUtils, final FakeRedisServer redis, final List<String[]> table,
+                     final SyntheticPubtrans.Shape shape, final Supplier<AbstractResultSetProcessor> processors) throws Exception {
+        final AllocationCounter allocations = new AllocationCounter();
+        for (int i = 0; i < warmup; i++) {
+            scan(SyntheticPubtrans.newResultSet(shape, table), shape.columns.length);
+            processors.get().processResultSet(SyntheticPubtrans.newResultSet(shape, table), new QueryStats());
+        }
+
+        long scanBytes = 0;
+        long processBytes = 0;
+        long processNanos = 0;
+        long commands = 0;
+        long roundTrips = 0;
+        for (int i = 0; i < iterations; i++) {
+            allocations.start();
+            scan(SyntheticPubtrans.newResultSet(shape, table), shape.columns.length);
+            scanBytes += allocations.stop();
+
+            final AbstractResultSetProcessor processor = processors.get();
+            final ResultSet resultSet = SyntheticPubtrans.newResultSet(shape, table);
+            final QueryStats stats = new QueryStats();
+            final long startCommands = redisUtils.commandCounter.get();
+            final long startFailed = redisUtils.failedCommandCounter.get();
+            final long startRoundTrips = redisUtils.roundTripCounter.get();
+            redis.resetCounts();
+            allocations.start();
+            final long startTime = System.nanoTime();
+            processor.processResultSet(resultSet, stats);
+            processNanos += System.nanoTime() - startTime;
+            processBytes += allocations.stop();
+
+            assertEquals(name + " rows", table.size(), stats.getRows());
+            assertEquals(name + " failed Redis commands", 0, redisUtils.failedCommandCounter.get() - startFailed);
+            assertEquals(name + " commands received by Redis", redisUtils.commandCounter.get() - startCommands, redis.getTotalCommands());
+            commands += redisUtils.commandCounter.get() - startCommands;
+            roundTrips += redisUtils.roundTripCounter.get() - startRoundTrips;
+        }
+        assertTrue(name + " wrote nothing", commands > 0);
+
+        final double totalRows = (double) table.size() * iterations;
+        log.info("{}: {} rows/s, {} bytes allocated/row ({} by the result set), {} commands/row, {} rows/round-trip, {} rows x {} iterations",
+                name, Math.round(totalRows / (processNanos / 1e9)), Math.round((processBytes - scanBytes) / totalRows),
+                Math.round(scanBytes / totalRows), String.format("%.2f", commands / totalRows),
+                roundTrips > 0 ? Math.round(totalRows / roundTrips) : 0, table.size(), iterations);
+    }
+
+    /**
+     * Reads every column of every row, which is the least a processor does
+     */
+    private static void scan(final ResultSet resultSet, final int columns) throws Exception {
+        final QueryStats stats = new QueryStats();
+        while (stats.next(resultSet)) {
+            for (int column = 1; column <= columns; column++) {
+                resultSet.getString(column);
+            }
+        }
+    }
+
+    /**
+     * Heap allocated between start and stop by the threads that were running at the start, excluding the fake Redis.
+     * Writer threads of RedisUtils are pooled, so they are started by the warmup.
+     */
+    private static class AllocationCounter {
+        private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private long[] threadIds;
+        private long startBytes;
+
+        void start() {
+            final long[] allIds = threads.getAllThreadIds();
+            final ThreadInfo[] infos = threads.getThreadInfo(allIds);
+            threadIds = Arrays.stream(infos)
+                    .filter(info -> info != null && !info.getThreadName().startsWith("fake-redis"))
+                    .mapToLong(ThreadInfo::getThreadId)
+                    .toArray();
+            startBytes = getAllocatedBytes();
+        }
+
+        long stop() {
+            return getAllocatedBytes() - startBytes;
+        }
+
+        private long getAllocatedBytes() {
+            long bytes = 0;
+            for (long threadBytes : threads.getThreadAllocatedBytes(threadIds)) {
+                bytes += Math.max(0, threadBytes);
+            }
+            return bytes;
+        }
+    }
+}